@@ -0,0 +1,118 @@
+package benchmark;
+
+import data.Message;
+import data.RPCMessage;
+import frontEndServer.ServerFrontEndImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import replicationManagerServer.ReplicationManagerImpl;
+import replicationManagerServer.RouteNetwork;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Cost of the front end handling a request end to end, fanning out to every replica and gathering their replies.
+ * <p>
+ * The replicas run in the benchmark's own JVM but are reached over the configured transport, RMI by default or NIO
+ * with -Dds2016.transport=NIO, so the figures include marshalling and the loopback round trips. Requests carry no RPC
+ * id, so none of them are answered from a reply cache.
+ *
+ * @author michael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    private static final long STARTUP_TIMEOUT_MS = 30000;
+
+    private ServerFrontEndImpl mFrontEnd;
+    private Message[] mNextStopRequests;
+    private Message[] mUpdateRequests;
+    private Message[] mLocationRequests;
+    private int mNext;
+
+    @Setup
+    public void setup() throws InterruptedException, RemoteException {
+        for (Map.Entry<String, Integer> rm : replicationManagers.entrySet()) {
+            new ReplicationManagerImpl(rm.getValue(), rm.getKey());
+        }
+        mFrontEnd = ServerFrontEndImpl.getInstance();
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (mFrontEnd.listTramService().size() < replicationManagers.size()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Front end did not connect to every replica");
+            }
+            Thread.sleep(10);
+        }
+
+        RouteNetwork network = RouteNetwork.current();
+        int trams = network.routeCount() * MAX_TRAMS_PER_ROUTE;
+        mNextStopRequests = new Message[trams];
+        mUpdateRequests = new Message[trams];
+        mLocationRequests = new Message[trams];
+        for (int tramId = 0; tramId < trams; tramId++) {
+            int routeIndex = tramId / MAX_TRAMS_PER_ROUTE;
+            int route = network.routeId(routeIndex);
+            int stop = tramId % (network.stopCount(routeIndex) - 1);
+            mNextStopRequests[tramId] = request(RETRIEVE_NEXT_STOP_PROCEDURE_ID, tramId,
+                    route, network.stop(routeIndex, stop + 1), network.stop(routeIndex, stop));
+            mUpdateRequests[tramId] = request(UPDATE_TRAM_LOCATION_PROCEDURE_ID, tramId,
+                    route, tramId, network.stop(routeIndex, stop));
+            mLocationRequests[tramId] = request(RETRIEVE_TRAM_LOCATION_PROCEDURE_ID, tramId, tramId);
+            // Every tram has a location to read back.
+            mFrontEnd.updateTramLocation(mUpdateRequests[tramId]);
+        }
+    }
+
+    @Benchmark
+    public Message retrieveNextStop() throws RemoteException {
+        return mFrontEnd.retrieveNextStop(mNextStopRequests[next()]);
+    }
+
+    @Benchmark
+    public Message updateTramLocation() throws RemoteException {
+        return mFrontEnd.updateTramLocation(mUpdateRequests[next()]);
+    }
+
+    @Benchmark
+    public Message retrieveTramLocation() throws RemoteException {
+        return mFrontEnd.retrieveTramLocation(mLocationRequests[next()]);
+    }
+
+    private int next() {
+        int next = mNext;
+        mNext = next + 1 == mNextStopRequests.length ? 0 : next + 1;
+        return next;
+    }
+
+    private static Message request(short procedureId, long requestId, long... fields) {
+        RPCMessage request = new RPCMessage();
+        request.setMessageType(REQUEST);
+        request.setTransactionId(requestId);
+        request.setRPCId(0);
+        request.setRequestId(requestId);
+        request.setProcedureId(procedureId);
+        request.setStatus(SUCCESS_STATUS);
+        request.setFields(fields);
+        Message message = new Message();
+        message.marshal(request);
+        return message;
+    }
+}
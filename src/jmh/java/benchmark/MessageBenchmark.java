@@ -0,0 +1,95 @@
+package benchmark;
+
+import data.Message;
+import data.RPCMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import replicationManagerServer.RouteNetwork;
+
+import java.util.concurrent.TimeUnit;
+
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Cost of marshalling and unmarshalling update batches of increasing size, in the binary encoding and in the csv
+ * encoding used for messages without a schema.
+ *
+ * @author michael
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    // A procedure with no schema, so the message falls back to the csv encoding.
+    private static final short UNKNOWN_PROCEDURE_ID = 99;
+
+    @Param({"1", "16", "256"})
+    public int entries;
+
+    @Param({"BINARY", "CSV"})
+    public String encoding;
+
+    private final RPCMessage mRequest = new RPCMessage();
+    private final RPCMessage mDecoded = new RPCMessage();
+    private final Message mReused = new Message();
+    private final Message mEncoded = new Message();
+
+    @Setup
+    public void setup() {
+        mRequest.setMessageType(REQUEST);
+        mRequest.setTransactionId(42);
+        mRequest.setRPCId(System.currentTimeMillis() << 20);
+        mRequest.setRequestId(7);
+        mRequest.setProcedureId(encoding.equals("BINARY") ? UPDATE_TRAM_LOCATIONS_PROCEDURE_ID : UNKNOWN_PROCEDURE_ID);
+        mRequest.setStatus(SUCCESS_STATUS);
+        mRequest.clearFields();
+        RouteNetwork network = RouteNetwork.current();
+        long timestamp = System.currentTimeMillis() << 16;
+        for (int i = 0; i < entries; i++) {
+            int route = i % network.routeCount();
+            mRequest.addField(network.routeId(route));
+            mRequest.addField(i % (network.routeCount() * MAX_TRAMS_PER_ROUTE));
+            mRequest.addField(network.stop(route, i % network.stopCount(route)));
+            mRequest.addField(timestamp + i);
+        }
+        mEncoded.marshal(mRequest);
+    }
+
+    /*
+    * Marshalling into a message whose buffer is reused, as the client and replicas do.
+    * */
+    @Benchmark
+    public Message marshal() {
+        mReused.marshal(mRequest);
+        return mReused;
+    }
+
+    /*
+    * Marshalling into a new message, as for every reply kept in a reply cache.
+    * */
+    @Benchmark
+    public Message marshalNew() {
+        Message message = new Message();
+        message.marshal(mRequest);
+        return message;
+    }
+
+    @Benchmark
+    public RPCMessage unMarshal() {
+        return mEncoded.unMarshal(mDecoded);
+    }
+}
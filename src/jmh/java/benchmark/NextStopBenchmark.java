@@ -0,0 +1,115 @@
+package benchmark;
+
+import data.Message;
+import data.RPCMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import replicationManagerServer.ReplicationManagerImpl;
+import replicationManagerServer.RouteNetwork;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Cost of looking up the next stop, on its own in the route table and through a replica's retrieveNextStop with and
+ * without a reply cache hit. Requests cycle through every stop of every route in both directions.
+ *
+ * @author michael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NextStopBenchmark {
+
+    private RouteNetwork mNetwork;
+    private ReplicationManagerImpl mReplicationManager;
+    private int[][] mLookups;
+    private Message[] mRequests;
+    private Message[] mRetriedRequests;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mNetwork = RouteNetwork.current();
+        String rm = replicationManagers.keySet().iterator().next();
+        mReplicationManager = new ReplicationManagerImpl(replicationManagers.get(rm), rm);
+
+        List<int[]> lookups = new ArrayList<>();
+        for (int route = 0; route < mNetwork.routeCount(); route++) {
+            int routeId = mNetwork.routeId(route);
+            int stops = mNetwork.stopCount(route);
+            for (int i = 0; i < stops; i++) {
+                if (i > 0) {
+                    lookups.add(new int[]{routeId, mNetwork.stop(route, i), mNetwork.stop(route, i - 1)});
+                }
+                if (i < stops - 1) {
+                    lookups.add(new int[]{routeId, mNetwork.stop(route, i), mNetwork.stop(route, i + 1)});
+                }
+            }
+        }
+        mLookups = lookups.toArray(new int[lookups.size()][]);
+
+        mRequests = new Message[mLookups.length];
+        mRetriedRequests = new Message[mLookups.length];
+        for (int i = 0; i < mLookups.length; i++) {
+            // Requests without an RPC id are never cached, so every call does the lookup.
+            mRequests[i] = request(0, i, mLookups[i]);
+            mRetriedRequests[i] = request(i + 1, i, mLookups[i]);
+        }
+    }
+
+    @Benchmark
+    public int routeTable() {
+        int[] lookup = mLookups[next()];
+        return mNetwork.nextStop(lookup[0], lookup[1], lookup[2]);
+    }
+
+    @Benchmark
+    public Message retrieveNextStop() throws RemoteException {
+        return mReplicationManager.retrieveNextStop(mRequests[next()]);
+    }
+
+    /*
+    * A retried request, answered from the reply cache after the first time round.
+    * */
+    @Benchmark
+    public Message retrieveNextStopRetried() throws RemoteException {
+        return mReplicationManager.retrieveNextStop(mRetriedRequests[next()]);
+    }
+
+    private int next() {
+        int next = mNext;
+        mNext = next + 1 == mLookups.length ? 0 : next + 1;
+        return next;
+    }
+
+    private static Message request(long RPCId, long requestId, int[] lookup) {
+        RPCMessage request = new RPCMessage();
+        request.setMessageType(REQUEST);
+        request.setTransactionId(requestId);
+        request.setRPCId(RPCId);
+        request.setRequestId(requestId);
+        request.setProcedureId(RETRIEVE_NEXT_STOP_PROCEDURE_ID);
+        request.setStatus(SUCCESS_STATUS);
+        request.setFields(lookup[0], lookup[1], lookup[2]);
+        Message message = new Message();
+        message.marshal(request);
+        return message;
+    }
+}
@@ -3,6 +3,10 @@ package application;
 import frontEndServer.ServerFrontEndImpl;
 import replicationManagerServer.ReplicationManagerImpl;
 
+import java.util.Map;
+
+import static replicationManagerServer.ReplicationManagerImpl.replicationManagers;
+
 /**
  * Main class to start the replicationManagerServer.
  *
@@ -12,9 +16,9 @@ public class Main {
 
     public static void main(String[] args) {
 
-        new ReplicationManagerImpl(9318, "rm1");
-        new ReplicationManagerImpl(9319, "rm2");
-        new ReplicationManagerImpl(9320, "rm3");
+        for (Map.Entry<String, Integer> rm : replicationManagers.entrySet()) {
+            new ReplicationManagerImpl(rm.getValue(), rm.getKey());
+        }
         ServerFrontEndImpl.getInstance();
 //      TrackingServiceImpl.getInstance();
     }
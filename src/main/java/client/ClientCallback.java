@@ -0,0 +1,19 @@
+package client;
+
+import data.Message;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback a client exports to have tram events pushed to it by the front end.
+ * <p>
+ * Each call carries a batch of events as a REPLY message of procedure TRAM_EVENTS_PROCEDURE_ID, with one
+ * (route, tram, stop, timestamp) entry per tram location update, oldest first.
+ *
+ * @author michael
+ */
+public interface ClientCallback extends Remote {
+
+    void onReply(Message message) throws RemoteException;
+}
@@ -0,0 +1,358 @@
+package client;
+
+import application.Main;
+import data.Message;
+import data.RPCMessage;
+import frontEndServer.ServerFrontEnd;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicationManagerServer.RouteNetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static data.RPCMessage.MessageType.REPLY;
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Drives a fleet of simulated trams against the front end to find where the system saturates.
+ * <p>
+ * Every tram runs the same loop as TramClient, asking for its next stop, travelling there and reporting its location,
+ * but as a state machine on a shared scheduler rather than a thread of its own, so thousands fit in one JVM. Travel
+ * times are the real 10 to 20 seconds divided by ds2016.load.timeCompression.
+ * <p>
+ * The scheduler only times the steps. Calls are made on a pool that grows to one thread per tram, so a slow front end
+ * never holds back the calls of other trams, and latency is measured from when a call was due to be sent rather than
+ * when it was. Otherwise time spent queueing behind slow calls would be missing from the figures (coordinated
+ * omission).
+ * <p>
+ * Unless ds2016.load.launchCluster is false a cluster is started in a separate JVM first, sized to fit the fleet.
+ * Throughput and latency percentiles per procedure are printed every ds2016.load.reportSec seconds and for the whole
+ * run at the end.
+ *
+ * @author michael
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+
+    static final int TRAMS = Integer.getInteger("ds2016.load.trams", 1000);
+    static final double TIME_COMPRESSION =
+            Double.parseDouble(System.getProperty("ds2016.load.timeCompression", "100"));
+    static final int SCHEDULER_THREADS = Integer.getInteger("ds2016.load.schedulerThreads", 2);
+    static final long DURATION_SEC = Long.getLong("ds2016.load.durationSec", 60);
+    static final long REPORT_SEC = Long.getLong("ds2016.load.reportSec", 5);
+    static final boolean LAUNCH_CLUSTER =
+            Boolean.parseBoolean(System.getProperty("ds2016.load.launchCluster", "true"));
+
+    private static final long RETRY_DELAY_MS = 100;
+    private static final long CLUSTER_STARTUP_TIMEOUT_MS = 30000;
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final String HEADER =
+            String.format("%8s %-20s %10s %10s %10s %10s %10s %8s", "time", "procedure", "ops/s", "p50 us",
+                    "p99 us", "p999 us", "max us", "errors");
+
+    private final ServerFrontEnd mFrontEnd;
+    private final RPCIdLease mRPCIds;
+    private final ScheduledExecutorService mScheduler;
+    // A tram makes one call at a time, so this never has more threads than trams.
+    private final ExecutorService mCallExecutor;
+    private final ProcedureStats mNextStopStats = new ProcedureStats("retrieveNextStop");
+    private final ProcedureStats mUpdateStats = new ProcedureStats("updateTramLocation");
+    private final List<Tram> mTrams = new ArrayList<>();
+    private volatile boolean mRunning = true;
+
+    private LoadGenerator(ServerFrontEnd frontEnd) {
+        mFrontEnd = frontEnd;
+        mRPCIds = new RPCIdLease(frontEnd::leaseRPCIdBlock);
+        mScheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "load-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mCallExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "load-tram");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+    * Main method to run the load generator.
+    * */
+    public static void main(String args[]) throws Exception {
+        Process cluster = LAUNCH_CLUSTER ? launchCluster() : null;
+        try {
+            ServerFrontEnd frontEnd = awaitFrontEnd();
+            new LoadGenerator(frontEnd).run();
+        } finally {
+            if (cluster != null) {
+                cluster.destroy();
+            }
+        }
+        System.exit(0);
+    }
+
+    private void run() throws RemoteException, InterruptedException {
+        for (int i = 0; i < TRAMS; i++) {
+            int tramId = mFrontEnd.getTramId();
+            if (tramId == -1) {
+                logger.warn("No tram ids left after " + i + " trams, raise ds2016.trams.perRoute on the front end");
+                break;
+            }
+            int route = mFrontEnd.getRoute(tramId);
+            mTrams.add(new Tram(tramId, route, mFrontEnd.getFirstStop(route), mFrontEnd.getSecondStop(route)));
+        }
+        System.out.println("Running " + mTrams.size() + " trams for " + DURATION_SEC + "s at " + TIME_COMPRESSION
+                + "x time compression");
+
+        // Trams start spread over one travel time so they do not all ask at once.
+        long spreadMs = travelTimeMs(MAX_SLEEP);
+        for (Tram tram : mTrams) {
+            tram.schedule(tram::retrieveNextStop, ThreadLocalRandom.current().nextLong(spreadMs + 1));
+        }
+
+        System.out.println(HEADER);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION_SEC);
+        long nextReport = start;
+        while (System.nanoTime() < end) {
+            nextReport += TimeUnit.SECONDS.toNanos(REPORT_SEC);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(nextReport, end) - System.nanoTime()));
+            long elapsed = System.nanoTime() - start;
+            mNextStopStats.reportInterval(elapsed);
+            mUpdateStats.reportInterval(elapsed);
+        }
+        mRunning = false;
+        mScheduler.shutdown();
+        mCallExecutor.shutdown();
+        mScheduler.awaitTermination(5, TimeUnit.SECONDS);
+        mCallExecutor.awaitTermination(5, TimeUnit.SECONDS);
+
+        System.out.println("\nWhole run");
+        System.out.println(HEADER);
+        long elapsed = System.nanoTime() - start;
+        mNextStopStats.reportTotal(elapsed);
+        mUpdateStats.reportTotal(elapsed);
+
+        for (Tram tram : mTrams) {
+            mFrontEnd.releaseTramId(tram.mTramId);
+        }
+    }
+
+    /*
+    * Start rm1-3 and the front end in their own JVM, with room for every tram and the same ds2016 settings as this
+    * one. Its output goes to loadgen-cluster.log.
+    * */
+    private static Process launchCluster() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String key = property.getKey().toString();
+            if (key.startsWith("ds2016.") && !key.startsWith("ds2016.load.")) {
+                command.add("-D" + key + "=" + property.getValue());
+            }
+        }
+        if (System.getProperty("ds2016.trams.perRoute") == null) {
+            int routes = RouteNetwork.current().routeCount();
+            command.add("-Dds2016.trams.perRoute=" + Math.max(MAX_TRAMS_PER_ROUTE, (TRAMS + routes - 1) / routes));
+        }
+        command.add(Main.class.getName());
+
+        File log = new File("loadgen-cluster.log");
+        Process cluster = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::destroy));
+        System.out.println("Launched cluster, output in " + log.getAbsolutePath());
+        return cluster;
+    }
+
+    /*
+    * Connect to the front end, waiting for it to come up.
+    * */
+    private static ServerFrontEnd awaitFrontEnd() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CLUSTER_STARTUP_TIMEOUT_MS;
+        while (true) {
+            try {
+                return TramClient.connectToFrontEnd();
+            } catch (NotBoundException | IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Front end did not come up: " + e);
+                }
+                Thread.sleep(250);
+            }
+        }
+    }
+
+    private static long travelTimeMs(int seconds) {
+        return (long) (TimeUnit.SECONDS.toMillis(seconds) / TIME_COMPRESSION);
+    }
+
+    /*
+    * One simulated tram. Only ever run by one thread at a time, as each step schedules the next.
+    * */
+    private class Tram {
+        private final int mTramId;
+        private final int mRoute;
+        private int mPreviousStop;
+        private int mCurrentStop;
+        private int mNextStop;
+        private long mTransactionId;
+        private long mRequestId;
+        // When the next call was due to be sent, which its latency is measured from.
+        private long mDueNanos = System.nanoTime();
+        private final Message mRequestMessage = new Message();
+        private final RPCMessage mRequestRPCMessage = new RPCMessage();
+        private final RPCMessage mReplyRPCMessage = new RPCMessage();
+
+        Tram(int tramId, int route, int firstStop, int secondStop) {
+            mTramId = tramId;
+            mRoute = route;
+            mCurrentStop = firstStop;
+            mPreviousStop = secondStop;
+        }
+
+        void retrieveNextStop() {
+            mTransactionId++;
+            RPCMessage reply = call(RETRIEVE_NEXT_STOP_PROCEDURE_ID, mNextStopStats, mRoute, mCurrentStop,
+                    mPreviousStop);
+            if (reply == null || reply.getFieldCount() == 0 || reply.getInt(0) == -1) {
+                schedule(this::retrieveNextStop, RETRY_DELAY_MS);
+                return;
+            }
+            mNextStop = reply.getInt(0);
+            int seconds = ThreadLocalRandom.current().nextInt(MAX_SLEEP - MIN_SLEEP + 1) + MIN_SLEEP;
+            schedule(this::arrive, travelTimeMs(seconds));
+        }
+
+        void arrive() {
+            mPreviousStop = mCurrentStop;
+            mCurrentStop = mNextStop;
+            updateTramLocation();
+        }
+
+        void updateTramLocation() {
+            if (call(UPDATE_TRAM_LOCATION_PROCEDURE_ID, mUpdateStats, mRoute, mTramId, mCurrentStop) == null) {
+                schedule(this::updateTramLocation, RETRY_DELAY_MS);
+                return;
+            }
+            retrieveNextStop();
+        }
+
+        /*
+        * Make one timed call. Returns the reply, or null when the call failed or the reply does not match. A call
+        * straight after another is due as soon as the previous one returns.
+        * */
+        private RPCMessage call(short procedureId, ProcedureStats stats, long... fields) {
+            if (!mRunning) {
+                return null;
+            }
+            long startNanos = mDueNanos;
+            try {
+                long RPCId = mRPCIds.next();
+                mRequestId++;
+                RPCMessage request = mRequestRPCMessage;
+                request.reset();
+                request.setMessageType(REQUEST);
+                request.setTransactionId(mTransactionId);
+                request.setRPCId(RPCId);
+                request.setRequestId(mRequestId);
+                request.setProcedureId(procedureId);
+                request.setFields(fields);
+                request.setStatus(SUCCESS_STATUS);
+                mRequestMessage.marshal(request);
+
+                Message replyMessage = procedureId == RETRIEVE_NEXT_STOP_PROCEDURE_ID
+                        ? mFrontEnd.retrieveNextStop(mRequestMessage)
+                        : mFrontEnd.updateTramLocation(mRequestMessage);
+                mDueNanos = System.nanoTime();
+                long latencyNanos = mDueNanos - startNanos;
+                RPCMessage reply = replyMessage == null || replyMessage.isEmpty()
+                        ? null : replyMessage.unMarshal(mReplyRPCMessage);
+                if (reply == null || reply.getMessageType() != REPLY || reply.getRPCId() != RPCId
+                        || reply.getRequestId() != mRequestId || reply.getStatus() != SUCCESS_STATUS) {
+                    stats.recordError();
+                    return null;
+                }
+                stats.record(latencyNanos);
+                return reply;
+            } catch (RemoteException e) {
+                mDueNanos = System.nanoTime();
+                stats.recordError();
+                return null;
+            }
+        }
+
+        /*
+        * Run a step on the call pool once the delay is up.
+        * */
+        private void schedule(Runnable step, long delayMs) {
+            if (mRunning) {
+                mDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                mScheduler.schedule(() -> mCallExecutor.execute(step), delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /*
+    * Latencies and errors of one procedure, per reporting interval and for the whole run.
+    * */
+    private static class ProcedureStats {
+        private final String mName;
+        private final Recorder mRecorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+        private final Histogram mTotal = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        private final AtomicLong mErrors = new AtomicLong();
+        private long mReportedErrors;
+        private Histogram mInterval;
+        private long mIntervalStart;
+
+        ProcedureStats(String name) {
+            mName = name;
+        }
+
+        void record(long latencyNanos) {
+            mRecorder.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        }
+
+        void recordError() {
+            mErrors.incrementAndGet();
+        }
+
+        void reportInterval(long elapsedNanos) {
+            mInterval = mRecorder.getIntervalHistogram(mInterval);
+            mTotal.add(mInterval);
+            long errors = mErrors.get();
+            print(elapsedNanos, mInterval, elapsedNanos - mIntervalStart, errors - mReportedErrors);
+            mReportedErrors = errors;
+            mIntervalStart = elapsedNanos;
+        }
+
+        void reportTotal(long elapsedNanos) {
+            mTotal.add(mRecorder.getIntervalHistogram());
+            print(elapsedNanos, mTotal, elapsedNanos, mErrors.get());
+        }
+
+        private void print(long elapsedNanos, Histogram histogram, long periodNanos, long errors) {
+            double opsPerSecond = histogram.getTotalCount() / Math.max(1e-9, periodNanos / 1e9);
+            System.out.println(String.format("%7ds %-20s %10.1f %10d %10d %10d %10d %8d",
+                    TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), mName, opsPerSecond,
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue(), errors));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates RPC ids locally from blocks leased from the front end.
+ * <p>
+ * Taking an id is a single atomic increment; only when the current block runs out is a new one leased, so a client
+ * makes one leasing call per ds2016.rpcId.blockSize requests instead of one per request.
+ *
+ * @author michael
+ */
+class RPCIdLease {
+
+    static final int BLOCK_SIZE = Integer.getInteger("ds2016.rpcId.blockSize", 1024);
+
+    private final BlockSource mBlockSource;
+    private volatile Block mBlock = new Block(0, 0);
+
+    RPCIdLease(BlockSource blockSource) {
+        mBlockSource = blockSource;
+    }
+
+    long next() throws RemoteException {
+        while (true) {
+            Block block = mBlock;
+            long id = block.mNext.getAndIncrement();
+            if (id < block.mEnd) {
+                return id;
+            }
+            renew(block);
+        }
+    }
+
+    /*
+    * Lease a new block unless another thread already replaced the exhausted one.
+    * */
+    private synchronized void renew(Block exhausted) throws RemoteException {
+        if (mBlock == exhausted) {
+            long first = mBlockSource.leaseRPCIdBlock(BLOCK_SIZE);
+            mBlock = new Block(first, first + BLOCK_SIZE);
+        }
+    }
+
+    private static class Block {
+        private final AtomicLong mNext;
+        private final long mEnd;
+
+        Block(long first, long end) {
+            mNext = new AtomicLong(first);
+            mEnd = end;
+        }
+    }
+}
+
+interface BlockSource {
+    long leaseRPCIdBlock(int size) throws RemoteException;
+}
@@ -5,6 +5,11 @@ import data.RPCMessage;
 import frontEndServer.ServerFrontEnd;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import replicationManagerServer.RouteNetwork;
+import replicationManagerServer.RouteTable;
+import tracing.Tracer;
+import transport.ServerFrontEndClient;
+import transport.TransportMode;
 
 import java.io.IOException;
 import java.rmi.NotBoundException;
@@ -21,6 +26,11 @@ import static replicationManagerServer.ReplicationManagerImpl.*;
 
 /**
  * Client representing a tram, to connect and interact with the tracking service.
+ * <p>
+ * The tram downloads the route network when it starts and works out its next stops from it, so the only request per
+ * stop is the location update. Update replies carry the version of the front end's network, and the tram downloads
+ * the network again when that differs from its own. It asks the front end for a next stop only when its network does
+ * not have its stops, or for every stop with ds2016.client.localNextStop set to false.
  *
  * @author michael
  */
@@ -28,15 +38,24 @@ public class TramClient {
 
     private static final Logger logger = LogManager.getLogger(TramClient.class);
 
+    static final boolean LOCAL_NEXT_STOP =
+            Boolean.parseBoolean(System.getProperty("ds2016.client.localNextStop", "true"));
+
     private ServerFrontEnd mFrontEnd;
+    private RPCIdLease mRPCIds;
+    private String mTraceNode;
     private int mTramId;
     private int mRoute;
     private int mPreviousStop;
     private int mCurrentStop;
     private int mNextStop;
+    private RouteNetwork mRouteNetwork;
     private int mTransactionId;
     private int mRequestId;
     private boolean mServerResponding = true;
+    private final Message mRequestMessage = new Message();
+    private final RPCMessage mRequestRPCMessage = new RPCMessage();
+    private final RPCMessage mReplyRPCMessage = new RPCMessage();
 
     private TramClient() {
         mTransactionId = 0;
@@ -48,16 +67,12 @@ public class TramClient {
     * */
     private void connectTramWithServer() {
         logger.info("Connecting tram with replicationManagerServer front end...");
-        int mPort = 9317;
-        String mHost = "localhost";
-        String mUrl = "rmi://" + mHost + "/serverFrontEnd/";
-
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", mPort);
-            mFrontEnd = (ServerFrontEnd) registry.lookup(mUrl);
+            mFrontEnd = connectToFrontEnd();
         } catch (NotBoundException | IOException e) {
             e.printStackTrace();
         }
+        mRPCIds = new RPCIdLease(mFrontEnd::leaseRPCIdBlock);
 
         try {
             mTramId = mFrontEnd.getTramId();
@@ -66,6 +81,8 @@ public class TramClient {
                 logger.warn("No tramID's available. Quitting...");
                 System.exit(-1);
             }
+            Runtime.getRuntime().addShutdownHook(new Thread(this::releaseTramId));
+            mTraceNode = "tram" + mTramId;
             mRoute = mFrontEnd.getRoute(mTramId);
             logger.debug("route:" + mRoute);
             mCurrentStop = mFrontEnd.getFirstStop(mRoute);
@@ -75,7 +92,83 @@ public class TramClient {
         } catch (RemoteException e) {
             e.printStackTrace();
         }
+        if (LOCAL_NEXT_STOP) {
+            refreshRouteNetwork();
+        }
+    }
+
+    /*
+    * Download the route network from the front end, unless the one held is still current. A tram without a network,
+    * including one whose download failed, asks the front end for its next stops.
+    * */
+    private void refreshRouteNetwork() {
+        long knownVersion = mRouteNetwork == null ? 0 : mRouteNetwork.version();
+        try {
+            long RPCId = mRPCIds.next();
+            mRequestId++;
+            RPCMessage requestRPCMessage = mRequestRPCMessage;
+            requestRPCMessage.reset();
+            requestRPCMessage.setMessageType(REQUEST);
+            requestRPCMessage.setTransactionId(mTransactionId);
+            requestRPCMessage.setRPCId(RPCId);
+            requestRPCMessage.setRequestId(mRequestId);
+            requestRPCMessage.setProcedureId(RETRIEVE_ROUTE_NETWORK_PROCEDURE_ID);
+            requestRPCMessage.clearFields();
+            requestRPCMessage.addField(knownVersion);
+            requestRPCMessage.setStatus(SUCCESS_STATUS);
+            mRequestMessage.marshal(requestRPCMessage);
+
+            long startNanos = Tracer.start();
+            RPCMessage reply = mFrontEnd.retrieveRouteNetwork(mRequestMessage).unMarshal(mReplyRPCMessage);
+            Tracer.record(mTraceNode, "retrieveRouteNetwork", reply, startNanos);
+            if (reply.getMessageType() != REPLY ||
+                    reply.getRPCId() != RPCId ||
+                    reply.getRequestId() != mRequestId ||
+                    reply.getProcedureId() != RETRIEVE_ROUTE_NETWORK_PROCEDURE_ID ||
+                    reply.getStatus() != SUCCESS_STATUS ||
+                    reply.getFieldCount() == 0) {
+                throw new IOException("bad reply");
+            }
+            long version = reply.getLong(0);
+            if (version == knownVersion) {
+                return;
+            }
+            RouteNetwork network = RouteNetwork.readFrom(reply, 1);
+            if (network.version() != version) {
+                throw new IOException("the network does not match its version");
+            }
+            mRouteNetwork = network;
+            logger.info("Downloaded route network version " + Long.toHexString(version) + ", "
+                    + network.routeCount() + " routes");
+        } catch (IOException e) {
+            logger.warn("Could not download the route network, asking for next stops instead: " + e.getMessage());
+            mRouteNetwork = null;
+        }
+    }
 
+    /*
+    * Connect to the front end over the current transport.
+    * */
+    static ServerFrontEnd connectToFrontEnd() throws IOException, NotBoundException {
+        int port = 9317;
+        String host = "localhost";
+        if (TransportMode.current() == TransportMode.NIO) {
+            return new ServerFrontEndClient(host, TransportMode.nioPort(port));
+        }
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        return (ServerFrontEnd) registry.lookup("rmi://" + host + "/serverFrontEnd/");
+    }
+
+    /*
+    * Hand the tram id back to the front end when the tram is shut down. If this does not get through the id is
+    * reclaimed once its lease runs out.
+    * */
+    private void releaseTramId() {
+        try {
+            mFrontEnd.releaseTramId(mTramId);
+        } catch (RemoteException e) {
+            logger.warn("Could not release tram id " + mTramId);
+        }
     }
 
     /*
@@ -88,50 +181,56 @@ public class TramClient {
 
         while (mServerResponding) {
             /*
-            * Retrieve next stop.
+            * Work out the next stop from the route network, or retrieve it when the network does not have it.
             * */
             boolean receivedNextStop = false;
             mTransactionId++;
             mRequestId++;
             long RPCId = -1;
-            try {
-                RPCId = mFrontEnd.getRPCId();
-            } catch (RemoteException e) {
-                logger.warn("Remote exception. Quitting...");
-                mServerResponding = false;
+            if (mRouteNetwork != null) {
+                mNextStop = mRouteNetwork.nextStop(getRoute(), getCurrentStop(), getPreviousStop());
+                receivedNextStop = mNextStop != RouteTable.NO_STOP;
+                if (receivedNextStop) {
+                    printNextStop();
+                }
+            }
+            if (!receivedNextStop) {
+                try {
+                    RPCId = mRPCIds.next();
+                } catch (RemoteException e) {
+                    logger.warn("Remote exception. Quitting...");
+                    mServerResponding = false;
+                }
             }
 
             while (!receivedNextStop && mServerResponding) {
-                logger.info("Retreiving next stop...");
-                Message requestMessage = new Message();
+                Message requestMessage = mRequestMessage;
                 Message responseMessage;
-                RPCMessage requestRPCMessage = new RPCMessage();
+                RPCMessage requestRPCMessage = mRequestRPCMessage;
+                requestRPCMessage.reset();
                 requestRPCMessage.setMessageType(REQUEST);
                 requestRPCMessage.setTransactionId(mTransactionId);
                 requestRPCMessage.setRPCId(RPCId);
                 requestRPCMessage.setRequestId(mRequestId);
                 requestRPCMessage.setProcedureId(RETRIEVE_NEXT_STOP_PROCEDURE_ID);
-                requestRPCMessage.setCsv_data(getRoute() + "," + getCurrentStop() + "," + getPreviousStop());
+                requestRPCMessage.clearFields();
+                requestRPCMessage.addField(getRoute());
+                requestRPCMessage.addField(getCurrentStop());
+                requestRPCMessage.addField(getPreviousStop());
                 requestRPCMessage.setStatus(SUCCESS_STATUS);
                 requestMessage.marshal(requestRPCMessage);
 
                 try {
+                    long startNanos = Tracer.start();
                     responseMessage = mFrontEnd.retrieveNextStop(requestMessage);
-                    RPCMessage rpcMessageReceived = responseMessage.unMarshal();
+                    RPCMessage rpcMessageReceived = responseMessage.unMarshal(mReplyRPCMessage);
+                    Tracer.record(mTraceNode, "retrieveNextStop", rpcMessageReceived, startNanos);
                     RPCMessage.MessageType type = rpcMessageReceived.getMessageType();
-                    logger.info("type: " + type);
                     long transactionId = rpcMessageReceived.getTransactionId();
-                    logger.info("transactionId: " + transactionId);
                     long RPCIdReceived = rpcMessageReceived.getRPCId();
-                    logger.info("RPCId: " + RPCIdReceived);
                     long requestId = rpcMessageReceived.getRequestId();
-                    logger.info("requestId: " + requestId);
                     short procedureId = rpcMessageReceived.getProcedureId();
-                    logger.info("procedureId: " + procedureId);
-                    String data = rpcMessageReceived.getCsv_data();
-                    logger.info("NEXT STOP: " + data);
                     short status = rpcMessageReceived.getStatus();
-                    logger.info("status: " + status);
 
                     if (type == REPLY &&
                             transactionId == mTransactionId &&
@@ -140,14 +239,11 @@ public class TramClient {
                             procedureId == RETRIEVE_NEXT_STOP_PROCEDURE_ID &&
                             status == SUCCESS_STATUS) {
 
-                        if (data != null) {
-                            mNextStop = Integer.parseInt(data);
+                        if (rpcMessageReceived.getFieldCount() > 0) {
+                            mNextStop = rpcMessageReceived.getInt(0);
                             if (mNextStop != -1) {
                                 receivedNextStop = true;
-
-                                // Print out the next stop and current time to the console
-                                String time = new SimpleDateFormat("h:mm a").format(new Date());
-                                System.out.println("The next stop is " + mNextStop + ", the current time is: " + time);
+                                printNextStop();
                             } else {
                                 System.out.println("Invalid next stop received from replicationManagerServer. Retrying...");
                             }
@@ -189,7 +285,7 @@ public class TramClient {
 
                 RPCId = -1;
                 try {
-                    RPCId = mFrontEnd.getRPCId();
+                    RPCId = mRPCIds.next();
                 } catch (RemoteException e) {
                     logger.warn("Remote exception. Quitting...");
                     mServerResponding = false;
@@ -198,36 +294,33 @@ public class TramClient {
             }
 
             while (!updateedTramLocation && mServerResponding) {
-                logger.info("Updating tram location...");
-                Message updateLocationMessage = new Message();
+                Message updateLocationMessage = mRequestMessage;
                 Message updateLocationresponseMessage;
-                RPCMessage rpcMessageUpdateLocation = new RPCMessage();
+                RPCMessage rpcMessageUpdateLocation = mRequestRPCMessage;
+                rpcMessageUpdateLocation.reset();
                 rpcMessageUpdateLocation.setMessageType(REQUEST);
                 rpcMessageUpdateLocation.setTransactionId(mTransactionId);
                 rpcMessageUpdateLocation.setRPCId(RPCId);
                 rpcMessageUpdateLocation.setRequestId(mRequestId);
                 rpcMessageUpdateLocation.setProcedureId(UPDATE_TRAM_LOCATION_PROCEDURE_ID);
-                rpcMessageUpdateLocation.setCsv_data(getRoute() + "," + mTramId + "," + getCurrentStop());
+                rpcMessageUpdateLocation.clearFields();
+                rpcMessageUpdateLocation.addField(getRoute());
+                rpcMessageUpdateLocation.addField(mTramId);
+                rpcMessageUpdateLocation.addField(getCurrentStop());
                 rpcMessageUpdateLocation.setStatus(SUCCESS_STATUS);
                 updateLocationMessage.marshal(rpcMessageUpdateLocation);
 
                 try {
+                    long startNanos = Tracer.start();
                     updateLocationresponseMessage = mFrontEnd.updateTramLocation(updateLocationMessage);
-                    RPCMessage rpcMessageReceived = updateLocationresponseMessage.unMarshal();
+                    RPCMessage rpcMessageReceived = updateLocationresponseMessage.unMarshal(mReplyRPCMessage);
+                    Tracer.record(mTraceNode, "updateTramLocation", rpcMessageReceived, startNanos);
                     RPCMessage.MessageType type = rpcMessageReceived.getMessageType();
-                    logger.info("type: " + type);
                     long transactionId = rpcMessageReceived.getTransactionId();
-                    logger.info("transactionId: " + transactionId);
                     long RPCIdReceived = rpcMessageReceived.getRPCId();
-                    logger.info("RPCId: " + RPCIdReceived);
                     long requestId = rpcMessageReceived.getRequestId();
-                    logger.info("requestId: " + requestId);
                     short procedureId = rpcMessageReceived.getProcedureId();
-                    logger.info("procedureId: " + procedureId);
-                    String data = rpcMessageReceived.getCsv_data();
-                    logger.info("NEXT STOP: " + data);
                     short status = rpcMessageReceived.getStatus();
-                    logger.info("status: " + status);
 
                     if (type == REPLY &&
                             transactionId == mTransactionId &&
@@ -236,6 +329,11 @@ public class TramClient {
                             procedureId == UPDATE_TRAM_LOCATION_PROCEDURE_ID &&
                             status == SUCCESS_STATUS) {
                         updateedTramLocation = true;
+                        // The reply carries the front end's route network version.
+                        if (LOCAL_NEXT_STOP && rpcMessageReceived.getFieldCount() > 0 && (mRouteNetwork == null
+                                || rpcMessageReceived.getLong(0) != mRouteNetwork.version())) {
+                            refreshRouteNetwork();
+                        }
                     } else {
                         System.out.println("Failed to update tram location on replicationManagerServer. Retrying...");
                     }
@@ -248,6 +346,14 @@ public class TramClient {
         }
     }
 
+    /*
+    * Print out the next stop and current time to the console.
+    * */
+    private void printNextStop() {
+        String time = new SimpleDateFormat("h:mm a").format(new Date());
+        System.out.println("The next stop is " + mNextStop + ", the current time is: " + time);
+    }
+
     /*
     * Main method to run a tram client.
     * */
@@ -294,7 +400,3 @@ public class TramClient {
         this.mNextStop = mNextStop;
     }
 }
-
-interface ClientCallback {
-    void onReply(Message message);
-}
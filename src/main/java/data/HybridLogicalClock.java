@@ -0,0 +1,54 @@
+package data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock.
+ * <p>
+ * Timestamps pack wall clock milliseconds into the top 48 bits and a logical counter into the low 16 bits. They stay
+ * close to physical time, never go backwards, and are strictly greater than any timestamp this clock has issued or
+ * been told about, so they order writes across front ends and replicas.
+ *
+ * @author michael
+ */
+public class HybridLogicalClock {
+
+    private static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private final AtomicLong mLast = new AtomicLong();
+
+    /*
+    * A timestamp for a local event.
+    * */
+    public long now() {
+        long physical = System.currentTimeMillis() << LOGICAL_BITS;
+        while (true) {
+            long last = mLast.get();
+            long next = physical > last ? physical : last + 1;
+            if (mLast.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /*
+    * Merge a timestamp received from elsewhere, so later local timestamps order after it.
+    * */
+    public void update(long remote) {
+        while (true) {
+            long last = mLast.get();
+            if (remote <= last || mLast.compareAndSet(last, remote)) {
+                return;
+            }
+        }
+    }
+
+    public static long physicalMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    public static int logical(long timestamp) {
+        return (int) (timestamp & LOGICAL_MASK);
+    }
+}
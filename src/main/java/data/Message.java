@@ -1,5 +1,8 @@
 package data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
@@ -8,6 +11,9 @@ import static data.RPCMessage.REQUEST;
 
 /**
  * Message class to define marshalling and un-marshalling.
+ * <p>
+ * A message can be marshalled into repeatedly; its buffer is kept and reused whenever it is large enough, and only
+ * the first length bytes are valid.
  *
  * @author michael
  */
@@ -16,10 +22,29 @@ public class Message implements Serializable {
     private byte data[] = null;
     private int length = 0;
 
+    public Message() {}
+
+    /*
+    * Wrap bytes received from a transport.
+    * */
+    public Message(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
     /*
-    * Perform the marshalling.
+    * Perform the marshalling. Messages whose fields match their procedure's schema use the binary encoding, anything
+    * else falls back to the csv encoding.
     * */
     public void marshal(RPCMessage rpcMessage) {
+        if (MessageCodec.hasSchema(rpcMessage)) {
+            int maxLength = MessageCodec.maxEncodedLength(rpcMessage);
+            if (data == null || data.length < maxLength) {
+                data = new byte[maxLength];
+            }
+            length = MessageCodec.get().encode(rpcMessage, data, 0);
+            return;
+        }
 
         length = rpcMessage.getLengthInBytes();
         ByteBuffer byteBuffer = ByteBuffer.allocate(length);
@@ -47,8 +72,9 @@ public class Message implements Serializable {
         byteBuffer.putShort(index, rpcMessage.getProcedureId());
         index += 2;
 
-        for (int i = 0; i < rpcMessage.getCsv_data().length(); i++, index += 2) {
-            byteBuffer.putChar(index, rpcMessage.getCsv_data().charAt(i));
+        String csvData = rpcMessage.getCsv_data();
+        for (int i = 0; i < csvData.length(); i++, index += 2) {
+            byteBuffer.putChar(index, csvData.charAt(i));
         }
 
         byteBuffer.putShort(index, rpcMessage.getStatus());
@@ -56,13 +82,42 @@ public class Message implements Serializable {
         data = byteBuffer.array();
     }
 
+    /*
+    * A message is empty until it has been marshalled.
+    * */
+    public boolean isEmpty() {
+        return data == null;
+    }
+
+    /*
+    * The marshalled bytes. Only the first getLength() bytes are valid.
+    * */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
     /*
     * Perform the unmarshalling.
     * */
     public RPCMessage unMarshal() {
+        return unMarshal(new RPCMessage());
+    }
 
-        RPCMessage rpcMessage = new RPCMessage();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+    /*
+    * Perform the unmarshalling into an existing message, which is reset first.
+    * */
+    public RPCMessage unMarshal(RPCMessage rpcMessage) {
+        if (MessageCodec.isBinary(data, length)) {
+            MessageCodec.get().decode(data, 0, length, rpcMessage);
+            return rpcMessage;
+        }
+
+        rpcMessage.reset();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data, 0, length);
         int index = 0;
 
         switch (byteBuffer.getShort(index)) {
@@ -88,7 +143,7 @@ public class Message implements Serializable {
         index += 2;
 
         StringBuilder stringBuilder = new StringBuilder();
-        for (; index < byteBuffer.array().length - 2; index += 2) {
+        for (; index < length - 2; index += 2) {
             stringBuilder.append(byteBuffer.getChar(index));
         }
         rpcMessage.setCsv_data(stringBuilder.toString());
@@ -97,4 +152,25 @@ public class Message implements Serializable {
 
         return rpcMessage;
     }
+
+    /*
+    * Only the valid bytes go on the wire, not the spare capacity of a reused buffer.
+    * */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.writeInt(data == null ? -1 : length);
+        if (data != null) {
+            out.write(data, 0, length);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        length = in.readInt();
+        if (length < 0) {
+            data = null;
+            length = 0;
+        } else {
+            data = new byte[length];
+            in.readFully(data);
+        }
+    }
 }
@@ -0,0 +1,248 @@
+package data;
+
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding for messages with a typed per-procedure schema.
+ * <p>
+ * Layout: version byte, message type byte, zig-zag varint transaction id, RPC id, request id, varint procedure id,
+ * zig-zag varint status, the procedure's fields as zig-zag varints and finally a CRC32 of everything before it.
+ * Procedures with a variable number of fields write the field count as a varint before the fields.
+ * Legacy messages always start with a zero byte (the high byte of the message type short), so the version byte
+ * tells the two encodings apart.
+ * <p>
+ * Codecs are per thread and encode into caller supplied buffers and decode into caller supplied messages, so a
+ * caller that reuses its buffers and RPCMessage instances does not allocate per message.
+ *
+ * @author michael
+ */
+public final class MessageCodec {
+
+    static final byte WIRE_VERSION = (byte) 0x81;
+
+    private static final int NO_SCHEMA = -1;
+    private static final int VARIABLE = -2;
+    private static final int MAX_HEADER_LENGTH = 2 + 3 * 10 + 5 + 5;
+    private static final int MAX_COUNT_LENGTH = 5;
+    private static final int MAX_FIELD_LENGTH = 10;
+    private static final int CHECKSUM_LENGTH = 4;
+
+    /*
+    * Number of fields per procedure id, for requests and replies.
+    * */
+    private static final int[][] FIELD_COUNTS = {
+            /* 0: unused */ {NO_SCHEMA, NO_SCHEMA},
+            /* 1: retrieve next stop (route, current stop, previous stop) -> (next stop) */ {3, 1},
+            /* 2: update tram location (route, tram, stop) -> (route network version) */ {3, 1},
+            /* 3: update tram locations (route, tram, stop, timestamp)* -> (status)* */ {VARIABLE, VARIABLE},
+            /* 4: retrieve tram location (tram) -> (route, stop, timestamp) or () when unknown */ {1, VARIABLE},
+            /* 5: gossip digest (level, (node, hash)*) -> (level + 1, (child, hash)*) or (LEVELS, (route, tram, stop,
+               timestamp)*) at the leaves */
+            {VARIABLE, VARIABLE},
+            /* 6: retrieve trams on route (route) -> (route, tram, stop, timestamp)* */ {1, VARIABLE},
+            /* 7: retrieve trams at stop (stop) -> (route, tram, stop, timestamp)* */ {1, VARIABLE},
+            /* 8: tram events, pushed to subscribers -> (route, tram, stop, timestamp)* */ {NO_SCHEMA, VARIABLE},
+            /* 9: retrieve route network (known version) -> (version) when unchanged, else (version, network) */
+            {1, VARIABLE},
+    };
+
+    private static final ThreadLocal<MessageCodec> CODECS = ThreadLocal.withInitial(MessageCodec::new);
+
+    private final CRC32 mCrc32 = new CRC32();
+    private final RPCMessage mScratchMessage = new RPCMessage();
+    private byte[] mScratchBuffer = new byte[256];
+    private byte[] mData;
+    private int mPosition;
+    private int mLimit;
+
+    private MessageCodec() {}
+
+    /*
+    * The calling thread's codec.
+    * */
+    public static MessageCodec get() {
+        return CODECS.get();
+    }
+
+    /*
+    * Whether the message's fields match its procedure's schema and it can be sent in the binary encoding.
+    * */
+    public static boolean hasSchema(RPCMessage rpcMessage) {
+        if (!rpcMessage.hasFields() || rpcMessage.getMessageType() == null) {
+            return false;
+        }
+        int count = fieldCount(rpcMessage.getProcedureId(), rpcMessage.getMessageType());
+        return count == VARIABLE || count == rpcMessage.getFieldCount();
+    }
+
+    /*
+    * Upper bound on the encoded size, for sizing buffers.
+    * */
+    public static int maxEncodedLength(RPCMessage rpcMessage) {
+        return MAX_HEADER_LENGTH + MAX_COUNT_LENGTH + rpcMessage.getFieldCount() * MAX_FIELD_LENGTH + CHECKSUM_LENGTH;
+    }
+
+    static boolean isBinary(byte[] data, int length) {
+        return length > 0 && data[0] == WIRE_VERSION;
+    }
+
+    private static int fieldCount(short procedureId, RPCMessage.MessageType type) {
+        if (procedureId < 0 || procedureId >= FIELD_COUNTS.length) {
+            return NO_SCHEMA;
+        }
+        return FIELD_COUNTS[procedureId][type.ordinal()];
+    }
+
+    /*
+    * A reusable message owned by this thread's codec, e.g. for inspecting a reply without keeping it.
+    * */
+    public RPCMessage scratchMessage() {
+        mScratchMessage.reset();
+        return mScratchMessage;
+    }
+
+    /*
+    * A buffer owned by this thread's codec with at least the given capacity.
+    * */
+    public byte[] scratchBuffer(int minCapacity) {
+        if (mScratchBuffer.length < minCapacity) {
+            mScratchBuffer = new byte[Math.max(minCapacity, mScratchBuffer.length * 2)];
+        }
+        return mScratchBuffer;
+    }
+
+    /*
+    * Encode a message with a schema into dst at offset. The buffer must hold maxEncodedLength bytes.
+    * Returns the number of bytes written.
+    * */
+    public int encode(RPCMessage rpcMessage, byte[] dst, int offset) {
+        mData = dst;
+        mPosition = offset;
+
+        dst[mPosition++] = WIRE_VERSION;
+        dst[mPosition++] = (byte) rpcMessage.getMessageType().ordinal();
+        putVarLong(zigZag(rpcMessage.getTransactionId()));
+        putVarLong(zigZag(rpcMessage.getRPCId()));
+        putVarLong(zigZag(rpcMessage.getRequestId()));
+        putVarLong(rpcMessage.getProcedureId());
+        putVarLong(zigZag(rpcMessage.getStatus()));
+        int count = rpcMessage.getFieldCount();
+        if (fieldCount(rpcMessage.getProcedureId(), rpcMessage.getMessageType()) == VARIABLE) {
+            putVarLong(count);
+        }
+        for (int i = 0; i < count; i++) {
+            putVarLong(zigZag(rpcMessage.getLong(i)));
+        }
+
+        int checksum = checksum(dst, offset, mPosition - offset);
+        dst[mPosition++] = (byte) (checksum >>> 24);
+        dst[mPosition++] = (byte) (checksum >>> 16);
+        dst[mPosition++] = (byte) (checksum >>> 8);
+        dst[mPosition++] = (byte) checksum;
+
+        mData = null;
+        return mPosition - offset;
+    }
+
+    /*
+    * Decode a binary message in place into the given message. A message that is truncated, fails its checksum or has
+    * no schema is left with no message type, so it fails the REQUEST/REPLY checks every receiver already performs.
+    * Returns whether the message decoded.
+    * */
+    public boolean decode(byte[] src, int offset, int length, RPCMessage into) {
+        into.reset();
+        int bodyLength = length - CHECKSUM_LENGTH;
+        if (bodyLength < 2 || checksum(src, offset, bodyLength) != readChecksum(src, offset + bodyLength)) {
+            return false;
+        }
+
+        int type = src[offset + 1];
+        if (type < 0 || type >= RPCMessage.MessageType.values().length) {
+            return false;
+        }
+        RPCMessage.MessageType messageType = RPCMessage.MessageType.values()[type];
+
+        mData = src;
+        mPosition = offset + 2;
+        mLimit = offset + bodyLength;
+        try {
+            into.setTransactionId(unZigZag(getVarLong()));
+            into.setRPCId(unZigZag(getVarLong()));
+            into.setRequestId(unZigZag(getVarLong()));
+            into.setProcedureId((short) getVarLong());
+            into.setStatus((short) unZigZag(getVarLong()));
+
+            int count = fieldCount(into.getProcedureId(), messageType);
+            if (count == NO_SCHEMA) {
+                return false;
+            }
+            if (count == VARIABLE) {
+                long encodedCount = getVarLong();
+                // Every field takes at least one byte. A count past 2^63 reads as negative.
+                if (encodedCount < 0 || encodedCount > mLimit - mPosition) {
+                    return false;
+                }
+                count = (int) encodedCount;
+            }
+            into.clearFields();
+            for (int i = 0; i < count; i++) {
+                into.addField(unZigZag(getVarLong()));
+            }
+            if (mPosition != mLimit) {
+                return false;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            mData = null;
+        }
+        into.setMessageType(messageType);
+
+        return true;
+    }
+
+    private int checksum(byte[] data, int offset, int length) {
+        mCrc32.reset();
+        mCrc32.update(data, offset, length);
+        return (int) mCrc32.getValue();
+    }
+
+    private static int readChecksum(byte[] data, int index) {
+        return (data[index] & 0xFF) << 24 | (data[index + 1] & 0xFF) << 16
+                | (data[index + 2] & 0xFF) << 8 | (data[index + 3] & 0xFF);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mData[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mData[mPosition++] = (byte) value;
+    }
+
+    /*
+    * Read a varint, throwing ArrayIndexOutOfBoundsException past the limit.
+    * */
+    private long getVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPosition >= mLimit) {
+                throw new ArrayIndexOutOfBoundsException(mPosition);
+            }
+            byte b = mData[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ArrayIndexOutOfBoundsException(mPosition);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,6 +1,7 @@
 package data;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * RCP Message class
@@ -19,15 +20,31 @@ public class RPCMessage implements Serializable {
     private long RequestId; /* Client request message counter */
     private short procedureId; /* e.g.(1,2,3,4) */
     private String csv_data; /* data as comma separated values*/
+    private long[] fields = new long[4]; /* typed data for procedures with a binary schema */
+    private int fieldCount = -1; /* -1 until fields are set or parsed from the csv data */
     private short status;
 
     public RPCMessage() {}
 
+    /*
+    * Clear every field so the instance can be reused for another message.
+    * */
+    public void reset() {
+        messageType = null;
+        TransactionId = 0;
+        RPCId = 0;
+        RequestId = 0;
+        procedureId = 0;
+        csv_data = null;
+        fieldCount = -1;
+        status = 0;
+    }
+
     /*
     * Get the length of the message for use with marshalling and unmarshalling.
     * */
     int getLengthInBytes() {
-        return 2 + 8 + 8 + 8 + 2 + (csv_data.length() * 2) + 2;
+        return 2 + 8 + 8 + 8 + 2 + (getCsv_data().length() * 2) + 2;
     }
 
     public MessageType getMessageType() {
@@ -70,12 +87,101 @@ public class RPCMessage implements Serializable {
         this.procedureId = procedureId;
     }
 
+    /*
+    * The data as comma separated values. Typed fields are joined on demand.
+    * */
     public String getCsv_data() {
+        if (csv_data == null && fieldCount >= 0) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (int i = 0; i < fieldCount; i++) {
+                if (i > 0) {
+                    stringBuilder.append(',');
+                }
+                stringBuilder.append(fields[i]);
+            }
+            return stringBuilder.toString();
+        }
         return csv_data;
     }
 
     public void setCsv_data(String csv_data) {
         this.csv_data = csv_data;
+        fieldCount = -1;
+    }
+
+    /*
+    * Replace the typed fields.
+    * */
+    public void setFields(long... values) {
+        clearFields();
+        for (long value : values) {
+            addField(value);
+        }
+    }
+
+    /*
+    * Start an empty set of typed fields, to be filled with addField without allocating.
+    * */
+    public void clearFields() {
+        csv_data = null;
+        fieldCount = 0;
+    }
+
+    public void addField(long value) {
+        if (fieldCount < 0) {
+            clearFields();
+        }
+        if (fieldCount == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[fieldCount++] = value;
+    }
+
+    /*
+    * Overwrite an existing field.
+    * */
+    public void setField(int index, long value) {
+        getLong(index);
+        csv_data = null;
+        fields[index] = value;
+    }
+
+    /*
+    * Whether typed fields have been set, as opposed to csv data only.
+    * */
+    public boolean hasFields() {
+        return fieldCount >= 0;
+    }
+
+    /*
+    * Number of typed fields, parsing the csv data if the message arrived in the legacy encoding.
+    * */
+    public int getFieldCount() {
+        parseFields();
+        return fieldCount;
+    }
+
+    public int getInt(int index) {
+        return (int) getLong(index);
+    }
+
+    public long getLong(int index) {
+        parseFields();
+        if (index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount);
+        }
+        return fields[index];
+    }
+
+    private void parseFields() {
+        if (fieldCount < 0) {
+            fieldCount = 0;
+            if (csv_data != null && !csv_data.trim().isEmpty()) {
+                for (String value : csv_data.split(",")) {
+                    addField(Long.parseLong(value.trim()));
+                }
+            }
+        }
     }
 
     public short getStatus() {
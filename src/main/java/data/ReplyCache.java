@@ -0,0 +1,136 @@
+package data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of marshalled replies keyed by (RPCId, requestId), so a retried request is answered with the reply
+ * it already got instead of being executed again.
+ * <p>
+ * Entries are evicted oldest first once the cache holds ds2016.replyCache.maxEntries, and dropped once they are older
+ * than ds2016.replyCache.ttlMs. The cache is split into independently locked segments so concurrent requests rarely
+ * contend. Requests with RPCId 0 carry no id and are never cached.
+ *
+ * @author michael
+ */
+public final class ReplyCache {
+
+    static final int MAX_ENTRIES = Integer.getInteger("ds2016.replyCache.maxEntries", 8192);
+    static final long TTL_MS = Long.getLong("ds2016.replyCache.ttlMs", 60000);
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] mSegments = new Segment[SEGMENTS];
+    private final boolean mEnabled;
+    private final long mTtlNanos;
+
+    public ReplyCache() {
+        this(MAX_ENTRIES, TTL_MS);
+    }
+
+    ReplyCache(int maxEntries, long ttlMs) {
+        mEnabled = maxEntries > 0;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        int segmentEntries = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new Segment(segmentEntries);
+        }
+    }
+
+    /*
+    * The cached reply to a request, or null when there is none or the cache is switched off with zero entries.
+    * */
+    public Message get(long RPCId, long requestId, short procedureId) {
+        if (RPCId == 0 || !mEnabled) {
+            return null;
+        }
+        Key key = new Key(RPCId, requestId);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            CachedReply cachedReply = segment.get(key);
+            if (cachedReply == null) {
+                return null;
+            }
+            if (System.nanoTime() - cachedReply.mCreated > mTtlNanos) {
+                segment.remove(key);
+                return null;
+            }
+            return cachedReply.mProcedureId == procedureId ? cachedReply.mReply : null;
+        }
+    }
+
+    public void put(long RPCId, long requestId, short procedureId, Message reply) {
+        if (RPCId == 0 || !mEnabled || reply == null) {
+            return;
+        }
+        Key key = new Key(RPCId, requestId);
+        Segment segment = segment(key);
+        long now = System.nanoTime();
+        synchronized (segment) {
+            segment.put(key, new CachedReply(procedureId, reply, now));
+            // Entries are in insertion order, so the expired ones are at the front.
+            Iterator<CachedReply> cachedReplies = segment.values().iterator();
+            while (cachedReplies.hasNext() && now - cachedReplies.next().mCreated > mTtlNanos) {
+                cachedReplies.remove();
+            }
+        }
+    }
+
+    private Segment segment(Key key) {
+        return mSegments[key.hashCode() >>> (Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS))];
+    }
+
+    private static class Segment extends LinkedHashMap<Key, CachedReply> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mMaxEntries;
+
+        Segment(int maxEntries) {
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedReply> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    private static final class Key {
+        private final long mRPCId;
+        private final long mRequestId;
+
+        Key(long RPCId, long requestId) {
+            mRPCId = RPCId;
+            mRequestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mRPCId == other.mRPCId && mRequestId == other.mRequestId;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = (mRPCId * 0x9E3779B97F4A7C15L) ^ mRequestId;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    private static final class CachedReply {
+        private final short mProcedureId;
+        private final Message mReply;
+        private final long mCreated;
+
+        CachedReply(short procedureId, Message reply, long created) {
+            mProcedureId = procedureId;
+            mReply = reply;
+            mCreated = created;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package frontEndServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicationManagerServer.TrackingService;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout based failure detector for the replication managers.
+ * <p>
+ * Heartbeats are sent in the background on a fixed interval and a replica is suspected once it has not acknowledged
+ * one within the suspicion timeout. The live replicas are published as an immutable snapshot, so request handlers
+ * read membership with a single volatile read and no remote calls.
+ *
+ * @author michael
+ */
+class FailureDetector {
+
+    private static final Logger logger = LogManager.getLogger(FailureDetector.class);
+
+    static final long HEARTBEAT_INTERVAL_MS = Long.getLong("ds2016.heartbeat.intervalMs", 500);
+    static final long SUSPECT_TIMEOUT_MS = Long.getLong("ds2016.heartbeat.timeoutMs", 1500);
+
+    private final Map<String, TrackingService> mTrackingServices;
+    private final SuspectedCallback mSuspectedCallback;
+    private final Map<String, Long> mLastHeartbeat = new ConcurrentHashMap<>();
+    private final Set<String> mHeartbeatsInFlight = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "failure-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService mHeartbeatExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Map<String, TrackingService> mLiveReplicas = Collections.emptyMap();
+
+    FailureDetector(Map<String, TrackingService> trackingServices, SuspectedCallback suspectedCallback) {
+        mTrackingServices = trackingServices;
+        mSuspectedCallback = suspectedCallback;
+    }
+
+    /*
+    * Start sending heartbeats.
+    * */
+    void start() {
+        mScheduler.scheduleWithFixedDelay(this::heartbeatRound, 0, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    * Snapshot of the replicas currently believed to be alive, keyed by RM name.
+    * */
+    Map<String, TrackingService> liveReplicas() {
+        return mLiveReplicas;
+    }
+
+    /*
+    * Record a successful contact with a replica, e.g. straight after it has been (re)connected.
+    * */
+    void alive(String rm) {
+        mLastHeartbeat.put(rm, System.nanoTime());
+        mScheduler.execute(this::publish);
+    }
+
+    /*
+    * Suspect a replica immediately, e.g. after a request to it failed. A later heartbeat clears the suspicion.
+    * */
+    void suspect(String rm) {
+        if (mLastHeartbeat.remove(rm) != null) {
+            mScheduler.execute(this::publish);
+        }
+    }
+
+    /*
+    * Send a heartbeat to every known replica that has no heartbeat outstanding, then republish membership.
+    * A replica that hangs simply stops acknowledging and is suspected once its timeout expires.
+    * */
+    private void heartbeatRound() {
+        for (Map.Entry<String, TrackingService> entry : mTrackingServices.entrySet()) {
+            String rm = entry.getKey();
+            TrackingService trackingService = entry.getValue();
+            if (mHeartbeatsInFlight.add(rm)) {
+                mHeartbeatExecutor.execute(() -> {
+                    try {
+                        if (trackingService.heartbeat()) {
+                            mLastHeartbeat.put(rm, System.nanoTime());
+                        }
+                    } catch (RemoteException e) {
+                        // No acknowledgement.
+                    } finally {
+                        mHeartbeatsInFlight.remove(rm);
+                    }
+                });
+            }
+        }
+        publish();
+    }
+
+    /*
+    * Rebuild the live replica snapshot. Only ever runs on the scheduler thread.
+    * */
+    private void publish() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(SUSPECT_TIMEOUT_MS);
+        Map<String, TrackingService> previous = mLiveReplicas;
+        Map<String, TrackingService> live = new TreeMap<>();
+
+        for (Map.Entry<String, TrackingService> entry : mTrackingServices.entrySet()) {
+            Long lastHeartbeat = mLastHeartbeat.get(entry.getKey());
+            if (lastHeartbeat != null && now - lastHeartbeat <= timeout) {
+                live.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (!live.keySet().equals(previous.keySet())) {
+            for (String rm : previous.keySet()) {
+                if (!live.containsKey(rm)) {
+                    logger.warn(rm + " suspected");
+                    System.out.println(rm.toUpperCase() + " is off");
+                    mSuspectedCallback.onSuspected(rm);
+                }
+            }
+            for (String rm : live.keySet()) {
+                if (!previous.containsKey(rm)) {
+                    System.out.println(rm.toUpperCase() + " is on");
+                }
+            }
+        }
+        if (!live.equals(previous)) {
+            mLiveReplicas = Collections.unmodifiableMap(live);
+        }
+    }
+}
+
+interface SuspectedCallback {
+    void onSuspected(String rm);
+}
@@ -0,0 +1,146 @@
+package frontEndServer;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When to send a read to a second replica because the first is slow.
+ * <p>
+ * With ds2016.hedge.enabled set, a read sent to one replica that has not been answered within the
+ * ds2016.hedge.percentile latency of its procedure is sent to another replica too, and the first reply wins. Each
+ * procedure's latencies are tracked over windows of ds2016.hedge.windowMs and the delay is taken from the last full
+ * window, never less than ds2016.hedge.minDelayMs. Until a procedure has a window of latencies it is not hedged.
+ * <p>
+ * Hedges are paid for from a token bucket. Every read adds ds2016.hedge.budget tokens, up to ds2016.hedge.burst, and
+ * every hedge takes one, so hedges add at most that fraction of extra reads even when a replica stalls and every read
+ * would like one.
+ *
+ * @author michael
+ */
+class HedgePolicy {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ds2016.hedge.enabled", "false"));
+    static final double PERCENTILE = Double.parseDouble(System.getProperty("ds2016.hedge.percentile", "95"));
+    static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ds2016.hedge.windowMs", 1000));
+    static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ds2016.hedge.minDelayMs", 1));
+    static final double BUDGET = Double.parseDouble(System.getProperty("ds2016.hedge.budget", "0.05"));
+    static final double BURST = Double.parseDouble(System.getProperty("ds2016.hedge.burst", "10"));
+
+    private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final boolean mEnabled;
+    private final long mWindowNanos;
+    private final Map<String, LatencyTracker> mTrackers = new ConcurrentHashMap<>();
+    // Guarded by this.
+    private double mTokens = BURST;
+    private final LongAdder mHedges = new LongAdder();
+    private final LongAdder mHedgeWins = new LongAdder();
+
+    HedgePolicy() {
+        this(ENABLED, WINDOW_NANOS);
+    }
+
+    HedgePolicy(boolean enabled, long windowNanos) {
+        mEnabled = enabled;
+        mWindowNanos = windowNanos;
+    }
+
+    /*
+    * Record the latency of a call to a replica that answered.
+    * */
+    void record(String procedure, long startNanos) {
+        if (mEnabled) {
+            tracker(procedure).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /*
+    * How long to wait for a procedure's first replica before hedging, or -1 when it is not to be hedged yet.
+    * */
+    long delayNanos(String procedure) {
+        return mEnabled ? tracker(procedure).delay(System.nanoTime()) : -1;
+    }
+
+    /*
+    * A read is starting, adding its share to the hedge budget.
+    * */
+    synchronized void requested() {
+        mTokens = Math.min(BURST, mTokens + BUDGET);
+    }
+
+    /*
+    * Take a hedge from the budget. Returns false when it is spent.
+    * */
+    boolean tryHedge() {
+        synchronized (this) {
+            if (mTokens < 1) {
+                return false;
+            }
+            mTokens--;
+        }
+        mHedges.increment();
+        return true;
+    }
+
+    /*
+    * A hedge answered before the first replica did.
+    * */
+    void hedgeWon() {
+        mHedgeWins.increment();
+    }
+
+    long hedges() {
+        return mHedges.sum();
+    }
+
+    long hedgeWins() {
+        return mHedgeWins.sum();
+    }
+
+    private LatencyTracker tracker(String procedure) {
+        LatencyTracker tracker = mTrackers.get(procedure);
+        return tracker != null ? tracker : mTrackers.computeIfAbsent(procedure, key -> new LatencyTracker(mWindowNanos));
+    }
+
+    /*
+    * A procedure's recent latencies and the hedge delay taken from them.
+    * */
+    private static class LatencyTracker {
+        private final Recorder mRecorder = new Recorder(HIGHEST_LATENCY_NANOS, 2);
+        private final long mWindowNanos;
+        private final AtomicLong mWindowEnd;
+        private volatile long mDelayNanos = -1;
+        // Written by the thread that rolls the window only.
+        private Histogram mRecycled;
+
+        LatencyTracker(long windowNanos) {
+            mWindowNanos = windowNanos;
+            mWindowEnd = new AtomicLong(System.nanoTime() + windowNanos);
+        }
+
+        void record(long latencyNanos) {
+            mRecorder.recordValue(Math.min(Math.max(0, latencyNanos), HIGHEST_LATENCY_NANOS));
+        }
+
+        /*
+        * The delay from the last full window. The first caller past the end of a window rolls it.
+        * */
+        long delay(long now) {
+            long windowEnd = mWindowEnd.get();
+            if (now - windowEnd >= 0 && mWindowEnd.compareAndSet(windowEnd, now + mWindowNanos)) {
+                Histogram window = mRecorder.getIntervalHistogram(mRecycled);
+                if (window.getTotalCount() > 0) {
+                    mDelayNanos = Math.max(MIN_DELAY_NANOS, window.getValueAtPercentile(PERCENTILE));
+                }
+                mRecycled = window;
+            }
+            return mDelayNanos;
+        }
+    }
+}
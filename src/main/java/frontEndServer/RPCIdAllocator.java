@@ -0,0 +1,82 @@
+package frontEndServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out blocks of globally unique RPC ids.
+ * <p>
+ * An id is [epoch 31 bits][front end id 8 bits][counter 24 bits]. The epoch is the front end's start time in seconds,
+ * so a restarted front end never reissues ids, and the front end id (ds2016.frontEndId) keeps front ends apart. A
+ * block never spans two epochs; when the counter runs out the epoch moves on to the current second, waiting for the
+ * next one if the counter ran out within a second. The epoch therefore never runs ahead of the clock, which a restart
+ * relies on.
+ *
+ * @author michael
+ */
+class RPCIdAllocator {
+
+    static final int FRONT_END_ID = Integer.getInteger("ds2016.frontEndId", 0);
+    static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private static final int COUNTER_BITS = 24;
+    private static final int FRONT_END_BITS = 8;
+    private static final long EPOCH_MASK = (1L << 31) - 1;
+    private static final long COUNTER_LIMIT = 1L << COUNTER_BITS;
+
+    private final long mFrontEndId;
+    private long mEpoch;
+    private long mCounter;
+
+    RPCIdAllocator() {
+        if (FRONT_END_ID < 0 || FRONT_END_ID >= 1 << FRONT_END_BITS) {
+            throw new IllegalArgumentException("ds2016.frontEndId must be between 0 and 255");
+        }
+        mFrontEndId = FRONT_END_ID;
+        mEpoch = currentEpoch();
+        // Id 0 is never issued, requests without an id keep meaning "no id".
+        mCounter = 1;
+    }
+
+    /*
+    * Reserve size consecutive ids and return the first.
+    * */
+    synchronized long leaseBlock(int size) {
+        if (size < 1 || size > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size " + size);
+        }
+        if (mCounter + size > COUNTER_LIMIT) {
+            mEpoch = nextEpoch(mEpoch);
+            mCounter = 1;
+        }
+        long first = (mEpoch & EPOCH_MASK) << (FRONT_END_BITS + COUNTER_BITS)
+                | mFrontEndId << COUNTER_BITS
+                | mCounter;
+        mCounter += size;
+        return first;
+    }
+
+    /*
+    * The current second once it is past the given epoch. Callers wait at most a second, and only after using up
+    * 2^24 ids within it.
+    * */
+    private static long nextEpoch(long epoch) {
+        boolean interrupted = false;
+        long next = currentEpoch();
+        while (next <= epoch) {
+            try {
+                Thread.sleep(Math.max(1, TimeUnit.SECONDS.toMillis(epoch + 1) - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            next = currentEpoch();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return next;
+    }
+
+    private static long currentEpoch() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,136 @@
+package frontEndServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicationManagerServer.TrackingService;
+import transport.TrackingServiceClient;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * (Re)connects the front end to the replication managers.
+ * <p>
+ * All connection attempts run on one scheduler thread. A replica that cannot be reached is retried with exponential
+ * backoff from ds2016.reconnect.baseMs up to ds2016.reconnect.maxMs, with jitter so replicas that went down together
+ * are not all retried at once. Asking to reconnect a replica that is already being reconnected does nothing, so there
+ * is never more than one attempt pending per replica.
+ *
+ * @author michael
+ */
+class ReconnectManager {
+
+    private static final Logger logger = LogManager.getLogger(ReconnectManager.class);
+
+    static final long BACKOFF_BASE_MS = Long.getLong("ds2016.reconnect.baseMs", 50);
+    static final long BACKOFF_MAX_MS = Long.getLong("ds2016.reconnect.maxMs", 5000);
+
+    private final Map<String, Replica> mReplicas = new ConcurrentHashMap<>();
+    private final Map<String, TrackingService> mTrackingServices = new ConcurrentHashMap<>();
+    private final ReplicaConnector mConnector;
+    private final ReconnectedCallback mReconnectedCallback;
+    // Not a daemon thread, it keeps a front end that is still waiting for its first replica running.
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+            new Thread(runnable, "rm-reconnect"));
+
+    ReconnectManager(Collection<String> replicas, ReplicaConnector connector,
+                     ReconnectedCallback reconnectedCallback) {
+        for (String rm : replicas) {
+            mReplicas.put(rm, new Replica(rm));
+        }
+        mConnector = connector;
+        mReconnectedCallback = reconnectedCallback;
+    }
+
+    /*
+    * The tracking service of every replica connected so far, keyed by RM name. A replica being reconnected keeps its
+    * previous tracking service until the new one replaces it.
+    * */
+    Map<String, TrackingService> trackingServices() {
+        return mTrackingServices;
+    }
+
+    /*
+    * Connect to a replica in the background, unless that is already under way.
+    * */
+    void reconnect(String rm) {
+        Replica replica = mReplicas.get(rm);
+        if (replica != null && replica.mReconnecting.compareAndSet(false, true)) {
+            mScheduler.execute(() -> attempt(replica));
+        }
+    }
+
+    /*
+    * The number of replicas currently being reconnected.
+    * */
+    int reconnecting() {
+        int reconnecting = 0;
+        for (Replica replica : mReplicas.values()) {
+            if (replica.mReconnecting.get()) {
+                reconnecting++;
+            }
+        }
+        return reconnecting;
+    }
+
+    /*
+    * One connection attempt. Only ever runs on the scheduler thread.
+    * */
+    private void attempt(Replica replica) {
+        TrackingService trackingService;
+        try {
+            trackingService = mConnector.connect(replica.mName);
+        } catch (NotBoundException | IOException e) {
+            replica.mFailedAttempts++;
+            mScheduler.schedule(() -> attempt(replica), backoffMs(replica.mFailedAttempts), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        TrackingService previous = mTrackingServices.put(replica.mName, trackingService);
+        if (previous instanceof TrackingServiceClient) {
+            ((TrackingServiceClient) previous).close();
+        }
+        if (replica.mFailedAttempts > 0) {
+            logger.info("Reconnected to " + replica.mName + " after " + replica.mFailedAttempts + " failed attempts");
+        }
+        replica.mFailedAttempts = 0;
+        replica.mReconnecting.set(false);
+        mReconnectedCallback.onConnected(replica.mName);
+    }
+
+    /*
+    * Exponential backoff with equal jitter: somewhere between half and all of the exponential delay.
+    * */
+    static long backoffMs(int failedAttempts) {
+        int doublings = Math.max(0, Math.min(failedAttempts - 1, 30));
+        long delay = Math.max(1, Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << doublings));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static class Replica {
+        private final String mName;
+        private final AtomicBoolean mReconnecting = new AtomicBoolean();
+        // Only touched on the scheduler thread.
+        private int mFailedAttempts;
+
+        Replica(String name) {
+            mName = name;
+        }
+    }
+}
+
+interface ReplicaConnector {
+    TrackingService connect(String rm) throws IOException, NotBoundException;
+}
+
+interface ReconnectedCallback {
+    void onConnected(String rm);
+}
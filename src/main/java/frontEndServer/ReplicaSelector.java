@@ -0,0 +1,121 @@
+package frontEndServer;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the replica to send a read to by the power of two choices.
+ * <p>
+ * Every call to a replica is timed. Each replica keeps a peak EWMA of its latency, which jumps straight up to a slow
+ * sample and decays back with a time constant of ds2016.select.decayMs, and a count of its outstanding calls. To
+ * choose, two replicas are drawn at random and the one with the lower latency times (outstanding calls + 1) wins, so
+ * load spreads over the replicas while slow or busy ones are avoided. A failed call counts as a sample of
+ * ds2016.select.failurePenaltyMs. The estimate also decays while a replica is not being called, so one that was slow
+ * is tried again once enough time has passed.
+ *
+ * @author michael
+ */
+class ReplicaSelector {
+
+    static final long DECAY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ds2016.select.decayMs", 10000));
+    static final long FAILURE_PENALTY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("ds2016.select.failurePenaltyMs", 1000));
+
+    private final Map<String, ReplicaLoad> mLoads = new ConcurrentHashMap<>();
+
+    /*
+    * The better of two random replicas not excluded, or null when there are none. Excluded names need not be
+    * replicas.
+    * */
+    String choose(Collection<String> replicas, Set<String> excluded) {
+        int candidates = 0;
+        for (String replica : replicas) {
+            if (!excluded.contains(replica)) {
+                candidates++;
+            }
+        }
+        if (candidates == 0) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates);
+        int second = candidates == 1 ? first : (first + 1 + random.nextInt(candidates - 1)) % candidates;
+        String firstReplica = null;
+        String secondReplica = null;
+        int index = 0;
+        for (String replica : replicas) {
+            if (excluded.contains(replica)) {
+                continue;
+            }
+            if (index == first) {
+                firstReplica = replica;
+            }
+            if (index == second) {
+                secondReplica = replica;
+            }
+            index++;
+        }
+        long now = System.nanoTime();
+        return load(secondReplica).cost(now) < load(firstReplica).cost(now) ? secondReplica : firstReplica;
+    }
+
+    /*
+    * A call to a replica is starting. Returns its start time, to be passed to finished.
+    * */
+    long started(String replica) {
+        load(replica).started();
+        return System.nanoTime();
+    }
+
+    void finished(String replica, long startNanos, boolean failed) {
+        long now = System.nanoTime();
+        long latency = now - startNanos;
+        load(replica).finished(now, failed ? Math.max(latency, FAILURE_PENALTY_NANOS) : latency);
+    }
+
+    /*
+    * A replica's current latency estimate in microseconds, for monitoring.
+    * */
+    long latencyMicros(String replica) {
+        return TimeUnit.NANOSECONDS.toMicros((long) load(replica).latency(System.nanoTime()));
+    }
+
+    private ReplicaLoad load(String replica) {
+        ReplicaLoad load = mLoads.get(replica);
+        return load != null ? load : mLoads.computeIfAbsent(replica, key -> new ReplicaLoad());
+    }
+
+    private static class ReplicaLoad {
+        // Guarded by this.
+        private double mLatencyNanos;
+        private long mLastSampleNanos = System.nanoTime();
+        private int mOutstanding;
+
+        synchronized void started() {
+            mOutstanding++;
+        }
+
+        synchronized void finished(long now, long latencyNanos) {
+            mOutstanding--;
+            if (latencyNanos > mLatencyNanos) {
+                mLatencyNanos = latencyNanos;
+            } else {
+                double weight = Math.exp(-(double) Math.max(0, now - mLastSampleNanos) / DECAY_NANOS);
+                mLatencyNanos = mLatencyNanos * weight + latencyNanos * (1 - weight);
+            }
+            mLastSampleNanos = now;
+        }
+
+        synchronized double latency(long now) {
+            return mLatencyNanos * Math.exp(-(double) Math.max(0, now - mLastSampleNanos) / DECAY_NANOS);
+        }
+
+        synchronized double cost(long now) {
+            return latency(now) * (mOutstanding + 1);
+        }
+    }
+}
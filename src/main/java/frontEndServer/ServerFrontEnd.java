@@ -1,5 +1,6 @@
 package frontEndServer;
 
+import client.ClientCallback;
 import data.Message;
 import replicationManagerServer.TrackingService;
 
@@ -16,11 +17,21 @@ public interface ServerFrontEnd extends Remote {
     void printTrackingServiceAvailability() throws RemoteException;
 
     int getTramId() throws RemoteException;
+    void releaseTramId(int tramId) throws RemoteException;
     int getRoute(int tramId) throws RemoteException;
     int getFirstStop(int route) throws RemoteException;
     int getSecondStop(int route) throws RemoteException;
     long getRPCId() throws RemoteException;
+    long leaseRPCIdBlock(int size) throws RemoteException;
 
     Message retrieveNextStop(Message message) throws RemoteException;
     Message updateTramLocation(Message message) throws RemoteException;
+    Message updateTramLocations(Message message) throws RemoteException;
+    Message retrieveTramLocation(Message message) throws RemoteException;
+    Message retrieveTramsOnRoute(Message message) throws RemoteException;
+    Message retrieveTramsAtStop(Message message) throws RemoteException;
+    Message retrieveRouteNetwork(Message message) throws RemoteException;
+
+    long subscribe(ClientCallback callback, SubscriptionTopic topic, int id) throws RemoteException;
+    void unsubscribe(long subscriptionId) throws RemoteException;
 }
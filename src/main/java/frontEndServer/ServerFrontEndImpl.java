@@ -1,21 +1,52 @@
 package frontEndServer;
 
+import client.ClientCallback;
+import data.HybridLogicalClock;
 import data.Message;
+import data.MessageCodec;
+import data.RPCMessage;
+import data.ReplyCache;
+import metrics.Metrics;
+import metrics.ProcedureMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import replicationManagerServer.ReplicationManagerImpl;
+import replicationManagerServer.RouteNetwork;
+import replicationManagerServer.Shards;
 import replicationManagerServer.TrackingService;
+import replicationManagerServer.TramLocation;
+import tracing.Tracer;
+import transport.NioServer;
+import transport.ServerFrontEndDispatcher;
+import transport.TransportMode;
 
 import java.io.IOException;
 import java.rmi.AlreadyBoundException;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static data.RPCMessage.MessageType.REPLY;
+import static data.RPCMessage.MessageType.REQUEST;
 
 import static replicationManagerServer.ReplicationManagerImpl.*;
 
@@ -25,27 +56,76 @@ import static replicationManagerServer.ReplicationManagerImpl.*;
 public class ServerFrontEndImpl implements ServerFrontEnd {
 
     private static final Logger logger = LogManager.getLogger(ServerFrontEndImpl.class);
+    // Replicas that must acknowledge a write, 0 for every live replica.
+    static final int WRITE_QUORUM = Integer.getInteger("ds2016.quorum.write", 0);
+    // Replicas consulted by a read, 0 for every live replica.
+    static final int READ_QUORUM = Integer.getInteger("ds2016.quorum.read", 1);
+
+    static final int REPLICA_THREADS = Integer.getInteger("ds2016.frontEnd.replicaThreads", 64);
+    static final long RMI_RESPONSE_TIMEOUT_MS = Long.getLong("ds2016.rmi.responseTimeoutMs", 5000);
+
+    // QUORUM reads fan out to every live replica, BEST_REPLICA sends reads needing one reply to one chosen replica.
+    static final ReadMode READ_MODE =
+            ReadMode.valueOf(System.getProperty("ds2016.read.mode", ReadMode.QUORUM.name()).toUpperCase());
+
     private volatile static ServerFrontEndImpl uniqueInstance;
-    private static Map<String, Integer> mReplicationManagers = new HashMap<>();
-    private static Map<String, Boolean> mConnected = new HashMap<>();
-    private static Map<String, TrackingService> mTrackingServices = new HashMap<>();
+    private static Map<String, Integer> mReplicationManagers = replicationManagers;
+    // Calls to replicas beyond REPLICA_THREADS run on the calling thread, which holds back new requests instead of
+    // piling up a thread for every call a stalled replica has not answered. Stalled calls end with the RMI response
+    // timeout, as cancelling them does not interrupt a call in flight.
+    private static ExecutorService mReplicaExecutor = new ThreadPoolExecutor(0, REPLICA_THREADS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "rm-call");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
     private boolean rmiSetup = false;
 
     static {
-        mReplicationManagers.put("rm1", 9318);
-        mReplicationManagers.put("rm2", 9319);
-        mReplicationManagers.put("rm3", 9320);
-        mConnected.put("rm1", false);
-        mConnected.put("rm2", false);
-        mConnected.put("rm3", false);
+        // Read once by RMI when it makes its first connection, so set before the front end looks any replica up.
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", Long.toString(RMI_RESPONSE_TIMEOUT_MS));
+        }
     }
 
     private int mTramId;
     private int mRoute;
-    private volatile long RPCId;
+    private final RPCIdAllocator mRPCIds = new RPCIdAllocator();
+    private final TramIdAllocator mTramIds = new TramIdAllocator();
+    private final ReplyCache mReplyCache = new ReplyCache();
+    private final ReconnectManager mReconnectManager;
+    private final FailureDetector mFailureDetector;
+    private final UpdateBatcher mUpdateBatcher;
+    private final SubscriptionManager mSubscriptions = new SubscriptionManager();
+    private final Shards mShards = Shards.current();
+    private volatile ShardReplicas mShardReplicas;
+    private final ReplicaSelector mReplicaSelector = new ReplicaSelector();
+    private final HedgePolicy mHedgePolicy = new HedgePolicy();
+    private final HybridLogicalClock mClock = new HybridLogicalClock();
+    private final ProcedureMetrics mNextStopMetrics = Metrics.procedure("frontEnd", "retrieveNextStop");
+    private final ProcedureMetrics mUpdateMetrics = Metrics.procedure("frontEnd", "updateTramLocation");
+    private final ProcedureMetrics mUpdateBatchMetrics = Metrics.procedure("frontEnd", "updateTramLocations");
+    private final ProcedureMetrics mLocationMetrics = Metrics.procedure("frontEnd", "retrieveTramLocation");
+    private final ProcedureMetrics mTramsOnRouteMetrics = Metrics.procedure("frontEnd", "retrieveTramsOnRoute");
+    private final ProcedureMetrics mTramsAtStopMetrics = Metrics.procedure("frontEnd", "retrieveTramsAtStop");
+    private final ProcedureMetrics mRouteNetworkMetrics = Metrics.procedure("frontEnd", "retrieveRouteNetwork");
 
     private ServerFrontEndImpl() {
-        RPCId = 0;
+        mReconnectManager = new ReconnectManager(mReplicationManagers.keySet(), ReplicationManagerImpl::connect,
+                this::onReplicaConnected);
+        mFailureDetector = new FailureDetector(mReconnectManager.trackingServices(), this::onReplicaSuspected);
+        mFailureDetector.start();
+        Metrics.gauge("frontEnd", "liveReplicas", () -> mFailureDetector.liveReplicas().size());
+        Metrics.gauge("frontEnd", "reconnectingReplicas", mReconnectManager::reconnecting);
+        Metrics.gauge("frontEnd", "subscriptions", mSubscriptions::size);
+        for (String rm : mReplicationManagers.keySet()) {
+            Metrics.gauge("frontEnd", "latencyEstimateMicros." + rm, () -> mReplicaSelector.latencyMicros(rm));
+        }
+        Metrics.gauge("frontEnd", "hedges", mHedgePolicy::hedges);
+        Metrics.gauge("frontEnd", "hedgeWins", mHedgePolicy::hedgeWins);
+        mUpdateBatcher = new UpdateBatcher(this::writeQuorum, mClock, mRPCIds, mReplicaExecutor);
+        mUpdateBatcher.start();
+        mTramIds.start();
         connectServerFrontEndWithReplicationManagers();
     }
 
@@ -88,67 +168,64 @@ public class ServerFrontEndImpl implements ServerFrontEnd {
         }
     }
 
+    /*
+     * Serve the front end over the NIO transport instead.
+     * */
+    private void setupNio(ServerFrontEndImpl serverFrontEnd) {
+        int nioPort = TransportMode.nioPort(9317);
+        // Reads hold a worker while every replica is asked, each call on a replica thread, so more workers than there
+        // are replica threads per replica would only queue for them. Updates are answered without holding a worker.
+        int workers = Integer.getInteger("ds2016.nio.frontEndWorkers",
+                Math.max(NioServer.WORKER_THREADS, REPLICA_THREADS / Math.max(1, mReplicationManagers.size())));
+        try {
+            new NioServer(nioPort, new ServerFrontEndDispatcher(serverFrontEnd), workers).start();
+            logger.info("Server front end listening for NIO connections on port " + nioPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /*
      * Connect to replication manager servers.
      * */
     private void connectServerFrontEndWithReplicationManagers() {
         for (String rm : mReplicationManagers.keySet()) {
-            connectToRm(rm, connected -> {
-                if (!rmiSetup) {
-                    setupRMI(this);
-                    rmiSetup = true;
-                    System.out.println("Created frontend Server, accepting connections...");
-                }
-            });
+            mReconnectManager.reconnect(rm);
         }
     }
 
     /*
-    * Provide a list of available tracking services.
+    * An RM has been (re)connected. The front end starts accepting clients once the first one is.
     * */
-    @Override
-    public List<TrackingService> listTramService() {
-        List<TrackingService> connectedRMs = new ArrayList<>();
-        for (String rm : mTrackingServices.keySet()) {
-            try {
-                Message message = mTrackingServices.get(rm).retrieveNextStop(null);
-                if (message != null) {
-                    // RM is connected.
-                    connectedRMs.add(mTrackingServices.get(rm));
-                }
-            } catch (RemoteException e) {
-                // RM is not connected.
-                mConnected.put(rm, false);
-                // Reconnect RM
-                connectToRm(rm, connected -> {
-                    // Reconnected.
-                });
+    private void onReplicaConnected(String rm) {
+        mFailureDetector.alive(rm);
+        synchronized (this) {
+            if (rmiSetup) {
+                return;
+            }
+            if (TransportMode.current() == TransportMode.NIO) {
+                setupNio(this);
+            } else {
+                setupRMI(this);
             }
+            rmiSetup = true;
+            System.out.println("Created frontend Server, accepting connections...");
         }
-        return connectedRMs;
     }
 
     /*
-    * Connect to the specified replication manager.
+    * Provide a list of available tracking services, as last seen by the failure detector.
     * */
-    private void connectToRm(String rm, ConnectedToRmCallback callback) {
-        new Thread(() -> {
-            while (!mConnected.get(rm)) {
-                int port = mReplicationManagers.get(rm);
-                String host = "localhost";
-                String url = "rmi://" + host + "/" + rm + "/";
+    @Override
+    public List<TrackingService> listTramService() {
+        return new ArrayList<>(mFailureDetector.liveReplicas().values());
+    }
 
-                try {
-                    Registry registry = LocateRegistry.getRegistry("localhost", port);
-                    TrackingService trackingService = (TrackingService) registry.lookup(url);
-                    mTrackingServices.put(rm, trackingService);
-                    mConnected.put(rm, true);
-                } catch (NotBoundException | IOException e) {
-                    // Could not connect to RM.
-                }
-            }
-            callback.onConnected(true);
-        }).start();
+    /*
+    * The failure detector suspects an RM. Reconnect it in the background.
+    * */
+    private void onReplicaSuspected(String rm) {
+        mReconnectManager.reconnect(rm);
     }
 
     /*
@@ -156,9 +233,10 @@ public class ServerFrontEndImpl implements ServerFrontEnd {
     * */
     @Override
     public void printTrackingServiceAvailability() {
-        for (String rm : mConnected.keySet()) {
+        Map<String, TrackingService> liveReplicas = mFailureDetector.liveReplicas();
+        for (String rm : mReplicationManagers.keySet()) {
             String status;
-            if (mConnected.get(rm)) {
+            if (liveReplicas.containsKey(rm)) {
                 status = "on";
             } else {
                 status = "off";
@@ -168,81 +246,899 @@ public class ServerFrontEndImpl implements ServerFrontEnd {
     }
 
     /*
-    * Retrieve the next stop from available RM's and pass back to the client.
+    * Retrieve the next stop from R RM's at once. With more than one replica consulted the majority answer is passed
+    * back to the client. A retried request is answered from the reply cache.
     * */
     @Override
-    public synchronized Message retrieveNextStop(Message message) throws RemoteException {
-        List<TrackingService> availableTrackingServices = listTramService();
-        printTrackingServiceAvailability();
+    public Message retrieveNextStop(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        // Not the scratch message, which checking the replies reuses.
+        RPCMessage request = message.unMarshal();
+        long RPCId = request.getRPCId();
+        long requestId = request.getRequestId();
+        Message cachedReply = mReplyCache.get(RPCId, requestId, RETRIEVE_NEXT_STOP_PROCEDURE_ID);
+        if (cachedReply != null) {
+            return retried(mNextStopMetrics, "retrieveNextStop.cached", cachedReply, startNanos);
+        }
+
+        Map<String, TrackingService> liveReplicas = liveReplicas(request.getFieldCount() > 0
+                ? mShards.shardOfRoute(request.getInt(0)) : 0);
+        // Next stops come from the route network every replica has, so in BEST_REPLICA mode one replica will do.
+        int required = READ_MODE == ReadMode.BEST_REPLICA ? 1 : readQuorum(liveReplicas);
+        Replies replies = read("retrieveNextStop", liveReplicas, message, TrackingService::retrieveNextStop,
+                ServerFrontEndImpl::isReply, required);
+        if (!replies.reachedQuorum()) {
+            return completed(mNextStopMetrics, "retrieveNextStop", replies.failureReply(message), true, startNanos);
+        }
 
-        Message messageReply = new Message();
-            for (TrackingService trackingService : availableTrackingServices) {
-                messageReply = trackingService.retrieveNextStop(message);
+        // Next stops come from the static route topology, so differing answers point at a misconfigured replica
+        // rather than stale data and there is nothing to repair.
+        Map<String, Integer> votes = new HashMap<>();
+        Message majority = null;
+        int majorityVotes = 0;
+        for (Message reply : replies.mCounted.values()) {
+            int count = votes.merge(answer(reply), 1, Integer::sum);
+            if (count > majorityVotes) {
+                majority = reply;
+                majorityVotes = count;
             }
-        return messageReply;
+        }
+        if (votes.size() > 1) {
+            logger.warn("Replicas disagree on the next stop: " + votes);
+        }
+        boolean valid = isValidReply(majority);
+        if (valid) {
+            mReplyCache.put(RPCId, requestId, RETRIEVE_NEXT_STOP_PROCEDURE_ID, majority);
+        }
+        return completed(mNextStopMetrics, "retrieveNextStop", majority, !valid, startNanos);
     }
 
     /*
-    * Update tram location on all available RM's.
+    * Update tram location on W RM's. Updates are coalesced with others arriving at the same time and sent as part of
+    * one updateTramLocations call per RM, stamped by the front end's clock so every replica orders them the same way.
+    * Reporting a location renews the tram's id lease. A retried update that already succeeded is answered from the
+    * reply cache rather than applied again.
     * */
     @Override
     public Message updateTramLocation(Message message) throws RemoteException {
-        List<TrackingService> availableTrackingServices = listTramService();
-        printTrackingServiceAvailability();
+        return await(updateTramLocationAsync(message));
+    }
 
-        Message messageReply = new Message();
-        for (TrackingService trackingService : availableTrackingServices) {
-            messageReply = trackingService.updateTramLocation(message);
+    /*
+    * Update tram location without waiting for the batch it goes out in. The future completes with the reply once the
+    * batch has been acknowledged, which lets the NIO transport serve any number of waiting updates from a few threads.
+    * */
+    public CompletableFuture<Message> updateTramLocationAsync(Message message) {
+        long startNanos = System.nanoTime();
+        // Not the scratch message, which checking replies on this thread reuses.
+        RPCMessage request = message.unMarshal();
+        if (request.getMessageType() != REQUEST
+                || request.getProcedureId() != UPDATE_TRAM_LOCATION_PROCEDURE_ID
+                || request.getFieldCount() != UPDATE_BATCH_ENTRY_FIELDS - 1) {
+            // Not a valid update, the replicas would have ignored it too.
+            return CompletableFuture.completedFuture(
+                    completed(mUpdateMetrics, "updateTramLocation", new Message(), true, startNanos));
+        }
+        mTramIds.renew(request.getInt(1));
+        long RPCId = request.getRPCId();
+        long requestId = request.getRequestId();
+        Message cachedReply = mReplyCache.get(RPCId, requestId, UPDATE_TRAM_LOCATION_PROCEDURE_ID);
+        if (cachedReply != null) {
+            return CompletableFuture.completedFuture(
+                    retried(mUpdateMetrics, "updateTramLocation.cached", cachedReply, startNanos));
         }
-        return messageReply;
+
+        return mUpdateBatcher.submit(request).thenApply(reply -> {
+            boolean valid = isValidReply(reply);
+            if (valid) {
+                mReplyCache.put(RPCId, requestId, UPDATE_TRAM_LOCATION_PROCEDURE_ID, reply);
+            }
+            return completed(mUpdateMetrics, "updateTramLocation", reply, !valid, startNanos);
+        });
     }
 
+    /*
+    * Send a batch of tram location updates to W RM's. Entries the client left unstamped are stamped here.
+    * */
     @Override
-    public int getTramId() throws RemoteException {
-        for (int i = 0; i < tramIds.size(); i++) {
-            if (!tramIds.get(i)) {
-                tramIds.put(i, true);
-                return i;
+    public Message updateTramLocations(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage request = message.unMarshal();
+        if (request.getMessageType() != REQUEST
+                || request.getProcedureId() != UPDATE_TRAM_LOCATIONS_PROCEDURE_ID
+                || request.getFieldCount() % UPDATE_BATCH_ENTRY_FIELDS != 0) {
+            return writeQuorum(message);
+        }
+
+        Message cachedReply = mReplyCache.get(request.getRPCId(), request.getRequestId(),
+                UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+        if (cachedReply != null) {
+            return retried(mUpdateBatchMetrics, "updateTramLocations.cached", cachedReply, startNanos);
+        }
+
+        boolean stamped = false;
+        for (int i = 0; i < request.getFieldCount(); i += UPDATE_BATCH_ENTRY_FIELDS) {
+            mTramIds.renew(request.getInt(i + 1));
+            if (request.getLong(i + 3) == 0) {
+                request.setField(i + 3, mClock.now());
+                stamped = true;
             }
         }
-        // no id's available.
-        return -1;
+        if (stamped) {
+            message = new Message();
+            message.marshal(request);
+        }
+        Message reply = writeQuorum(message);
+        boolean valid = isValidReply(reply);
+        if (valid) {
+            mReplyCache.put(request.getRPCId(), request.getRequestId(), UPDATE_TRAM_LOCATIONS_PROCEDURE_ID, reply);
+        }
+        return completed(mUpdateBatchMetrics, "updateTramLocations", reply, !valid, startNanos);
     }
 
+    /*
+    * Read the last known location of a tram from R RM's and return the newest. Replicas that answered with an older
+    * location, or did not know the tram, are repaired in the background.
+    * */
     @Override
-    public int getRoute(int tramId) throws RemoteException {
-        int route = 0;
+    public Message retrieveTramLocation(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage request = message.unMarshal();
+        Map<String, TrackingService> liveReplicas = liveReplicas(request.getFieldCount() > 0
+                ? mShards.shardOfRoute(getRoute(request.getInt(0))) : 0);
+        Replies replies = read("retrieveTramLocation", liveReplicas, message, TrackingService::retrieveTramLocation,
+                ServerFrontEndImpl::isReply, readQuorum(liveReplicas));
+        if (!replies.reachedQuorum()) {
+            return completed(mLocationMetrics, "retrieveTramLocation", replies.failureReply(message), true,
+                    startNanos);
+        }
 
-        for (int i = 0, j = 0; i < tramIds.size(); i++, j++) {
-            if (j == MAX_TRAMS_PER_ROUTE) {
-                j = 0;
-                route++;
+        Message newest = null;
+        RPCMessage newestLocation = null;
+        for (Message reply : replies.mCounted.values()) {
+            RPCMessage location = reply.unMarshal();
+            if (location.getStatus() == SUCCESS_STATUS && location.getFieldCount() == 3
+                    && (newestLocation == null || location.getLong(2) > newestLocation.getLong(2))) {
+                newest = reply;
+                newestLocation = location;
             }
-            if (i == tramId) {
-                return tramRoutes[route];
+        }
+        if (newest == null) {
+            // No replica consulted knows the tram.
+            Message unknown = replies.mCounted.values().iterator().next();
+            return completed(mLocationMetrics, "retrieveTramLocation", unknown, true, startNanos);
+        }
+
+        long timestamp = newestLocation.getLong(2);
+        mClock.update(timestamp);
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Message> reply : replies.mCounted.entrySet()) {
+            RPCMessage location = reply.getValue().unMarshal();
+            if (location.getStatus() != SUCCESS_STATUS || location.getFieldCount() != 3
+                    || location.getLong(2) < timestamp) {
+                stale.add(reply.getKey());
             }
         }
-        // Route not found.
-        return -1;
+        if (!stale.isEmpty()) {
+            readRepair(liveReplicas, stale, newestLocation.getInt(0), request.getInt(0),
+                    newestLocation.getInt(1), timestamp);
+        }
+        return completed(mLocationMetrics, "retrieveTramLocation", newest, false, startNanos);
+    }
+
+    /*
+    * List the trams on a route as (route, tram, stop, timestamp) entries.
+    * */
+    @Override
+    public Message retrieveTramsOnRoute(Message message) throws RemoteException {
+        return retrieveTrams(message, "retrieveTramsOnRoute", TrackingService::retrieveTramsOnRoute,
+                mTramsOnRouteMetrics, true);
+    }
+
+    /*
+    * List the trams at a stop as (route, tram, stop, timestamp) entries.
+    * */
+    @Override
+    public Message retrieveTramsAtStop(Message message) throws RemoteException {
+        return retrieveTrams(message, "retrieveTramsAtStop", TrackingService::retrieveTramsAtStop,
+                mTramsAtStopMetrics, false);
+    }
+
+    /*
+    * Send the route network to a tram, so it can work out its next stops without asking. The network comes from the
+    * front end's own copy, no replica is involved. A tram that already holds the current version gets the version
+    * alone.
+    * */
+    @Override
+    public Message retrieveRouteNetwork(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage request = message.unMarshal();
+        if (request.getMessageType() != REQUEST || request.getProcedureId() != RETRIEVE_ROUTE_NETWORK_PROCEDURE_ID) {
+            return completed(mRouteNetworkMetrics, "retrieveRouteNetwork", new Message(), true, startNanos);
+        }
+        RPCMessage rpcMessageReply = new RPCMessage();
+        rpcMessageReply.setMessageType(REPLY);
+        rpcMessageReply.setTransactionId(request.getTransactionId());
+        rpcMessageReply.setRPCId(request.getRPCId());
+        rpcMessageReply.setRequestId(request.getRequestId());
+        rpcMessageReply.setProcedureId(RETRIEVE_ROUTE_NETWORK_PROCEDURE_ID);
+        rpcMessageReply.clearFields();
+        if (request.getFieldCount() != 1) {
+            // The version the tram holds is missing.
+            rpcMessageReply.setStatus(FAILURE_STATUS);
+        } else {
+            RouteNetwork network = RouteNetwork.current();
+            rpcMessageReply.addField(network.version());
+            if (request.getLong(0) != network.version()) {
+                network.writeTo(rpcMessageReply);
+            }
+            rpcMessageReply.setStatus(SUCCESS_STATUS);
+        }
+        Message reply = new Message();
+        reply.marshal(rpcMessageReply);
+        return completed(mRouteNetworkMetrics, "retrieveRouteNetwork", reply,
+                rpcMessageReply.getStatus() != SUCCESS_STATUS, startNanos);
+    }
+
+    /*
+    * Ask R RM's for the trams on a route or at a stop. A route is held by one shard, a stop's trams can be in any
+    * shard so every shard is asked at once. With more than one replica consulted the lists are merged, keeping each
+    * tram's newest entry. A replica that has seen a tram move on leaves it out of its list rather than contradicting
+    * an older one, so until gossip catches up a tram that just left can still be listed.
+    * */
+    private Message retrieveTrams(Message message, String operation, ReplicaCall call, ProcedureMetrics metrics,
+                                  boolean byRoute) throws RemoteException {
+        long startNanos = System.nanoTime();
+        List<Message> lists = new ArrayList<>();
+        if (byRoute || mShards.count() == 1) {
+            RPCMessage request = message.unMarshal();
+            int shard = byRoute && request.getFieldCount() > 0 ? mShards.shardOfRoute(request.getInt(0)) : 0;
+            Replies replies = readShard(shard, operation, message, call);
+            if (!replies.reachedQuorum()) {
+                return completed(metrics, operation, replies.failureReply(message), true, startNanos);
+            }
+            lists.addAll(replies.mCounted.values());
+        } else {
+            List<Future<Replies>> shardReplies = new ArrayList<>();
+            for (int shard = 0; shard < mShards.count(); shard++) {
+                int queried = shard;
+                shardReplies.add(mReplicaExecutor.submit(() -> readShard(queried, operation, message, call)));
+            }
+            for (Future<Replies> future : shardReplies) {
+                Replies replies = await(future);
+                if (!replies.reachedQuorum()) {
+                    return completed(metrics, operation, replies.failureReply(message), true, startNanos);
+                }
+                lists.addAll(replies.mCounted.values());
+            }
+        }
+        if (lists.size() == 1) {
+            return completed(metrics, operation, lists.get(0), false, startNanos);
+        }
+
+        Map<Integer, TramLocation> newest = new LinkedHashMap<>();
+        RPCMessage merged = null;
+        for (Message reply : lists) {
+            RPCMessage trams = reply.unMarshal();
+            for (int i = 0; i + UPDATE_BATCH_ENTRY_FIELDS <= trams.getFieldCount(); i += UPDATE_BATCH_ENTRY_FIELDS) {
+                TramLocation location = new TramLocation(trams.getInt(i), trams.getInt(i + 2), trams.getLong(i + 3));
+                newest.merge(trams.getInt(i + 1), location, (current, other) -> other.supersedes(current)
+                        ? other : current);
+            }
+            merged = trams;
+        }
+        merged.clearFields();
+        for (Map.Entry<Integer, TramLocation> entry : newest.entrySet()) {
+            TramLocation location = entry.getValue();
+            merged.addField(location.getRouteId());
+            merged.addField(entry.getKey());
+            merged.addField(location.getStopId());
+            merged.addField(location.getTimestamp());
+        }
+        Message reply = new Message();
+        reply.marshal(merged);
+        return completed(metrics, operation, reply, false, startNanos);
+    }
+
+    private Replies readShard(int shard, String operation, Message message, ReplicaCall call)
+            throws RemoteException {
+        Map<String, TrackingService> liveReplicas = liveReplicas(shard);
+        return read(operation, liveReplicas, message, call, ServerFrontEndImpl::isValidReply,
+                readQuorum(liveReplicas));
+    }
+
+    /*
+    * Send the newest known location of a tram to the replicas that missed it. Replicas keep the newest timestamp, so
+    * a repair that races a newer update is harmless.
+    * */
+    private void readRepair(Map<String, TrackingService> liveReplicas, List<String> stale, int routeId, int tramId,
+                            int stopId, long timestamp) {
+        logger.info("Read repair of tram " + tramId + " on " + stale);
+        RPCMessage repair = new RPCMessage();
+        repair.setMessageType(REQUEST);
+        repair.setRPCId(mRPCIds.leaseBlock(1));
+        repair.setProcedureId(UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+        repair.setStatus(SUCCESS_STATUS);
+        repair.clearFields();
+        repair.addField(routeId);
+        repair.addField(tramId);
+        repair.addField(stopId);
+        repair.addField(timestamp);
+        Message repairMessage = new Message();
+        repairMessage.marshal(repair);
+
+        for (String rm : stale) {
+            TrackingService trackingService = liveReplicas.get(rm);
+            mReplicaExecutor.execute(() -> {
+                try {
+                    trackingService.updateTramLocations(repairMessage);
+                } catch (RemoteException e) {
+                    mFailureDetector.suspect(rm);
+                }
+            });
+        }
+    }
+
+    /*
+    * Send an update batch to the shards holding its routes. A batch spanning several shards is split, the parts are
+    * written to their shards at the same time and the per entry statuses are put back together in request order.
+    * */
+    private Message writeQuorum(Message message) throws RemoteException {
+        RPCMessage batch = message.unMarshal();
+        int entries = batch.getFieldCount() / UPDATE_BATCH_ENTRY_FIELDS;
+        if (mShards.count() == 1 || entries == 0 || batch.getFieldCount() % UPDATE_BATCH_ENTRY_FIELDS != 0) {
+            // Malformed batches go to the first shard, which answers them as it always has.
+            Message reply = writeShard(0, message);
+            publish(message, reply);
+            return reply;
+        }
+
+        int[] entryShards = new int[entries];
+        int[] shardEntries = new int[mShards.count()];
+        for (int i = 0; i < entries; i++) {
+            entryShards[i] = mShards.shardOfRoute(batch.getInt(i * UPDATE_BATCH_ENTRY_FIELDS));
+            shardEntries[entryShards[i]]++;
+        }
+        if (shardEntries[entryShards[0]] == entries) {
+            Message reply = writeShard(entryShards[0], message);
+            publish(message, reply);
+            return reply;
+        }
+
+        List<Future<Message>> shardWrites = new ArrayList<>();
+        for (int shard = 0; shard < mShards.count(); shard++) {
+            if (shardEntries[shard] == 0) {
+                shardWrites.add(null);
+                continue;
+            }
+            RPCMessage part = new RPCMessage();
+            part.setMessageType(batch.getMessageType());
+            part.setTransactionId(batch.getTransactionId());
+            part.setRPCId(batch.getRPCId());
+            part.setRequestId(batch.getRequestId());
+            part.setProcedureId(batch.getProcedureId());
+            part.setStatus(batch.getStatus());
+            part.clearFields();
+            for (int i = 0; i < entries; i++) {
+                if (entryShards[i] == shard) {
+                    for (int field = 0; field < UPDATE_BATCH_ENTRY_FIELDS; field++) {
+                        part.addField(batch.getLong(i * UPDATE_BATCH_ENTRY_FIELDS + field));
+                    }
+                }
+            }
+            Message partMessage = new Message();
+            partMessage.marshal(part);
+            int written = shard;
+            shardWrites.add(mReplicaExecutor.submit(() -> writeShard(written, partMessage)));
+        }
+
+        RPCMessage[] shardStatuses = new RPCMessage[mShards.count()];
+        boolean succeeded = true;
+        for (int shard = 0; shard < mShards.count(); shard++) {
+            if (shardWrites.get(shard) == null) {
+                continue;
+            }
+            try {
+                Message reply = await(shardWrites.get(shard));
+                RPCMessage statuses = reply.isEmpty() ? null : reply.unMarshal();
+                if (statuses != null && statuses.getMessageType() == REPLY && statuses.getStatus() == SUCCESS_STATUS
+                        && statuses.getFieldCount() == shardEntries[shard]) {
+                    shardStatuses[shard] = statuses;
+                    continue;
+                }
+            } catch (RemoteException e) {
+                logger.warn("Update batch to " + mShards.replicas(shard) + " failed: " + e.getMessage());
+            }
+            succeeded = false;
+        }
+
+        RPCMessage merged = new RPCMessage();
+        merged.setMessageType(REPLY);
+        merged.setTransactionId(batch.getTransactionId());
+        merged.setRPCId(batch.getRPCId());
+        merged.setRequestId(batch.getRequestId());
+        merged.setProcedureId(batch.getProcedureId());
+        merged.setStatus(succeeded ? SUCCESS_STATUS : FAILURE_STATUS);
+        merged.clearFields();
+        int[] shardPositions = new int[mShards.count()];
+        for (int i = 0; i < entries; i++) {
+            RPCMessage statuses = shardStatuses[entryShards[i]];
+            int position = shardPositions[entryShards[i]]++;
+            merged.addField(statuses == null ? FAILURE_STATUS : statuses.getInt(position));
+        }
+        Message reply = new Message();
+        reply.marshal(merged);
+        publish(message, reply);
+        return reply;
+    }
+
+    /*
+    * Send an update to every live RM of a shard and return once W of them acknowledge it. The remaining calls carry
+    * on in the background so slow replicas still receive the update.
+    * */
+    private Message writeShard(int shard, Message message) throws RemoteException {
+        Map<String, TrackingService> liveReplicas = liveReplicas(shard);
+        int required = WRITE_QUORUM > 0 ? WRITE_QUORUM : Math.max(1, liveReplicas.size());
+        Replies replies = fanOut("updateTramLocations", liveReplicas, message, TrackingService::updateTramLocations,
+                ServerFrontEndImpl::isValidReply, required, false);
+        if (!replies.reachedQuorum()) {
+            logger.warn("Write quorum not reached: " + replies.mCounted.size() + " of " + required + " acknowledged");
+            return replies.failureReply(message);
+        }
+        return replies.mCounted.values().iterator().next();
+    }
+
+    /*
+    * The live replicas of a shard. The failure detector publishes a new snapshot only when membership changes, so
+    * the split into shards is redone only then.
+    * */
+    private Map<String, TrackingService> liveReplicas(int shard) {
+        Map<String, TrackingService> liveReplicas = mFailureDetector.liveReplicas();
+        if (mShards.count() == 1) {
+            return liveReplicas;
+        }
+        ShardReplicas shardReplicas = mShardReplicas;
+        if (shardReplicas == null || shardReplicas.mLiveReplicas != liveReplicas) {
+            shardReplicas = new ShardReplicas(liveReplicas, mShards);
+            mShardReplicas = shardReplicas;
+        }
+        return shardReplicas.mByShard.get(shard);
+    }
+
+    /*
+    * Tell subscribers about the entries of an update batch that were applied.
+    * */
+    private void publish(Message batch, Message reply) {
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        RPCMessage updates = batch.unMarshal();
+        RPCMessage statuses = reply.unMarshal(MessageCodec.get().scratchMessage());
+        if (statuses.getFieldCount() * UPDATE_BATCH_ENTRY_FIELDS != updates.getFieldCount()) {
+            return;
+        }
+        for (int i = 0; i < statuses.getFieldCount(); i++) {
+            if (statuses.getInt(i) == SUCCESS_STATUS) {
+                int entry = i * UPDATE_BATCH_ENTRY_FIELDS;
+                mSubscriptions.publish(updates.getInt(entry), updates.getInt(entry + 1), updates.getInt(entry + 2),
+                        updates.getLong(entry + 3));
+            }
+        }
+    }
+
+    /*
+    * Have tram location events for a route, a stop, a tram or the whole fleet pushed to a callback as they are
+    * written. Returns the id to unsubscribe with.
+    * */
+    @Override
+    public long subscribe(ClientCallback callback, SubscriptionTopic topic, int id) throws RemoteException {
+        return mSubscriptions.subscribe(callback, topic, id);
+    }
+
+    @Override
+    public void unsubscribe(long subscriptionId) throws RemoteException {
+        mSubscriptions.unsubscribe(subscriptionId);
+    }
+
+    private static int readQuorum(Map<String, TrackingService> liveReplicas) {
+        return READ_QUORUM > 0 ? READ_QUORUM : Math.max(1, liveReplicas.size());
+    }
+
+    /*
+    * Read from the replicas. A read needing a single reply goes to one replica in BEST_REPLICA mode, every other read
+    * fans out.
+    * */
+    private Replies read(String procedure, Map<String, TrackingService> liveReplicas, Message message,
+                         ReplicaCall call, Predicate<Message> counts, int required) throws RemoteException {
+        if (READ_MODE == ReadMode.BEST_REPLICA && required == 1) {
+            return callBestReplica(procedure, liveReplicas, message, call, counts);
+        }
+        return fanOut(procedure, liveReplicas, message, call, counts, required, true);
+    }
+
+    /*
+    * Send the message to the replica the selector picks, moving on to the next pick when a replica fails or its
+    * reply does not count. The call is made on the calling thread, and its latency is recorded in the replica's
+    * metrics and fed back to the selector.
+    * */
+    private Replies callBestReplica(String procedure, Map<String, TrackingService> liveReplicas, Message message,
+                                    ReplicaCall call, Predicate<Message> counts) throws RemoteException {
+        if (HedgePolicy.ENABLED) {
+            return callHedged(procedure, liveReplicas, message, call, counts);
+        }
+        Replies replies = new Replies(1);
+        Set<String> tried = new HashSet<>();
+        RemoteException remoteException = null;
+        String rm;
+        while (!replies.reachedQuorum() && (rm = mReplicaSelector.choose(liveReplicas.keySet(), tried)) != null) {
+            tried.add(rm);
+            ProcedureMetrics metrics = Metrics.replicaCall(rm, procedure);
+            long startNanos = mReplicaSelector.started(rm);
+            Message reply;
+            try {
+                reply = call.invoke(liveReplicas.get(rm), message);
+            } catch (RemoteException e) {
+                mReplicaSelector.finished(rm, startNanos, true);
+                metrics.record(startNanos, true);
+                mFailureDetector.suspect(rm);
+                remoteException = e;
+                continue;
+            }
+            boolean failed = reply == null || reply.isEmpty();
+            mReplicaSelector.finished(rm, startNanos, failed);
+            metrics.record(startNanos, failed);
+            if (counts.test(reply)) {
+                replies.mCounted.put(rm, reply);
+            } else if (!failed) {
+                replies.mOther = reply;
+            }
+        }
+        if (replies.mCounted.isEmpty() && replies.mOther == null && remoteException != null) {
+            throw remoteException;
+        }
+        return replies;
+    }
+
+    /*
+    * Like callBestReplica, but when the chosen replica has not answered within the procedure's hedge delay and the
+    * hedge budget allows, the message is also sent to the next pick and the first reply that counts wins. At most one
+    * hedge is sent per read, and the call left running is cancelled.
+    * */
+    private Replies callHedged(String procedure, Map<String, TrackingService> liveReplicas, Message message,
+                               ReplicaCall call, Predicate<Message> counts) throws RemoteException {
+        mHedgePolicy.requested();
+        long delayNanos = mHedgePolicy.delayNanos(procedure);
+        CompletionService<Message> completionService = new ExecutorCompletionService<>(mReplicaExecutor);
+        Map<Future<Message>, String> calls = new HashMap<>();
+        Set<String> tried = new HashSet<>();
+        Replies replies = new Replies(1);
+        RemoteException remoteException = null;
+        boolean hedged = delayNanos < 0;
+        String primary = null;
+        try {
+            while (!replies.reachedQuorum()) {
+                if (calls.isEmpty()) {
+                    String rm = mReplicaSelector.choose(liveReplicas.keySet(), tried);
+                    if (rm == null) {
+                        break;
+                    }
+                    tried.add(rm);
+                    primary = rm;
+                    calls.put(completionService.submit(
+                            replicaCall(rm, liveReplicas.get(rm), procedure, message, call)), rm);
+                }
+                Future<Message> future;
+                if (hedged) {
+                    future = completionService.take();
+                } else {
+                    future = completionService.poll(delayNanos, TimeUnit.NANOSECONDS);
+                    if (future == null) {
+                        hedged = true;
+                        String rm = mReplicaSelector.choose(liveReplicas.keySet(), tried);
+                        if (rm != null && mHedgePolicy.tryHedge()) {
+                            tried.add(rm);
+                            calls.put(completionService.submit(
+                                    replicaCall(rm, liveReplicas.get(rm), procedure, message, call)), rm);
+                        }
+                        continue;
+                    }
+                }
+                String rm = calls.remove(future);
+                try {
+                    Message reply = future.get();
+                    if (counts.test(reply)) {
+                        replies.mCounted.put(rm, reply);
+                        if (!rm.equals(primary)) {
+                            mHedgePolicy.hedgeWon();
+                        }
+                    } else if (reply != null && !reply.isEmpty()) {
+                        replies.mOther = reply;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RemoteException) {
+                        remoteException = (RemoteException) e.getCause();
+                    } else {
+                        logger.warn("RM call failed: " + e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<Message> future : calls.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        if (replies.mCounted.isEmpty() && replies.mOther == null && remoteException != null) {
+            throw remoteException;
+        }
+        return replies;
+    }
+
+    /*
+    * Send the message to every tracking service concurrently and wait until the required number of replies that
+    * count towards the quorum have arrived, or every call has finished. When cancelOutstanding is set the calls still
+    * running are then cancelled, otherwise they are left to complete. A RemoteException is only thrown when no
+    * replica replied at all. Each call's latency is recorded in the replica's metrics for the procedure.
+    * */
+    private Replies fanOut(String procedure, Map<String, TrackingService> trackingServices, Message message,
+                           ReplicaCall call, Predicate<Message> counts, int required, boolean cancelOutstanding)
+            throws RemoteException {
+        CompletionService<Message> completionService = new ExecutorCompletionService<>(mReplicaExecutor);
+        Map<Future<Message>, String> calls = new HashMap<>();
+        for (Map.Entry<String, TrackingService> entry : trackingServices.entrySet()) {
+            String rm = entry.getKey();
+            calls.put(completionService.submit(replicaCall(rm, entry.getValue(), procedure, message, call)), rm);
+        }
+
+        Replies replies = new Replies(required);
+        RemoteException remoteException = null;
+        boolean replied = false;
+        try {
+            for (int i = 0; i < calls.size() && !replies.reachedQuorum(); i++) {
+                Future<Message> future = completionService.take();
+                try {
+                    Message reply = future.get();
+                    replied = true;
+                    if (counts.test(reply)) {
+                        replies.mCounted.put(calls.get(future), reply);
+                    } else if (reply != null && !reply.isEmpty()) {
+                        replies.mOther = reply;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RemoteException) {
+                        remoteException = (RemoteException) e.getCause();
+                    } else {
+                        logger.warn("RM call failed: " + e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (cancelOutstanding) {
+                for (Future<Message> future : calls.keySet()) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        if (!replied && remoteException != null) {
+            throw remoteException;
+        }
+        return replies;
+    }
+
+    /*
+    * A call to one replica, to run on the replica executor. Its latency is recorded in the replica's metrics for the
+    * procedure and fed to the replica selector and the hedge policy, and a replica whose call fails is suspected.
+    * */
+    private Callable<Message> replicaCall(String rm, TrackingService trackingService, String procedure,
+                                          Message message, ReplicaCall call) {
+        ProcedureMetrics metrics = Metrics.replicaCall(rm, procedure);
+        return () -> {
+            long startNanos = mReplicaSelector.started(rm);
+            try {
+                Message reply = call.invoke(trackingService, message);
+                boolean failed = reply == null || reply.isEmpty();
+                mReplicaSelector.finished(rm, startNanos, failed);
+                metrics.record(startNanos, failed);
+                if (!failed) {
+                    mHedgePolicy.record(procedure, startNanos);
+                }
+                return reply;
+            } catch (RemoteException e) {
+                // A call cancelled because other replicas already answered says nothing about this one, other
+                // than that it was slower.
+                boolean cancelled = Thread.currentThread().isInterrupted();
+                mReplicaSelector.finished(rm, startNanos, !cancelled);
+                if (!cancelled) {
+                    metrics.record(startNanos, true);
+                    mFailureDetector.suspect(rm);
+                }
+                throw e;
+            }
+        };
+    }
+
+    /*
+    * Record a handled request in the metrics and the trace, and pass its reply on.
+    * */
+    private static Message completed(ProcedureMetrics metrics, String operation, Message reply, boolean failed,
+                                     long startNanos) {
+        metrics.record(startNanos, failed);
+        Tracer.record("frontEnd", operation, reply, startNanos);
+        return reply;
+    }
+
+    /*
+    * Record a retried request answered from the reply cache, and pass the cached reply on.
+    * */
+    private static Message retried(ProcedureMetrics metrics, String operation, Message reply, long startNanos) {
+        metrics.recordRetry(startNanos);
+        Tracer.record("frontEnd", operation, reply, startNanos);
+        return reply;
+    }
+
+    /*
+    * Wait for a call made on the replica executor, passing on the RemoteException it failed with.
+    * */
+    private static <T> T await(Future<T> future) throws RemoteException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for replicas");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Replica call failed", e.getCause());
+        }
+    }
+
+    /*
+    * A reply is valid when it is a successful REPLY message.
+    * */
+    private static boolean isValidReply(Message reply) {
+        if (reply == null || reply.isEmpty()) {
+            return false;
+        }
+        RPCMessage rpcMessage = reply.unMarshal(MessageCodec.get().scratchMessage());
+        return rpcMessage.getMessageType() == REPLY && rpcMessage.getStatus() == SUCCESS_STATUS;
+    }
+
+    /*
+    * Any REPLY message is an answer to a read, including a replica saying it does not know.
+    * */
+    private static boolean isReply(Message reply) {
+        if (reply == null || reply.isEmpty()) {
+            return false;
+        }
+        return reply.unMarshal(MessageCodec.get().scratchMessage()).getMessageType() == REPLY;
+    }
+
+    /*
+    * What a reply says, for comparing the answers of different replicas.
+    * */
+    private static String answer(Message reply) {
+        RPCMessage rpcMessage = reply.unMarshal(MessageCodec.get().scratchMessage());
+        StringBuilder answer = new StringBuilder().append(rpcMessage.getStatus());
+        for (int i = 0; i < rpcMessage.getFieldCount(); i++) {
+            answer.append(',').append(rpcMessage.getLong(i));
+        }
+        return answer.toString();
+    }
+
+    enum ReadMode {QUORUM, BEST_REPLICA}
+
+    /*
+    * A live replica snapshot split into shards.
+    * */
+    private static class ShardReplicas {
+        private final Map<String, TrackingService> mLiveReplicas;
+        private final List<Map<String, TrackingService>> mByShard = new ArrayList<>();
+
+        ShardReplicas(Map<String, TrackingService> liveReplicas, Shards shards) {
+            mLiveReplicas = liveReplicas;
+            for (int shard = 0; shard < shards.count(); shard++) {
+                Map<String, TrackingService> replicas = new LinkedHashMap<>();
+                for (String rm : shards.replicas(shard)) {
+                    TrackingService trackingService = liveReplicas.get(rm);
+                    if (trackingService != null) {
+                        replicas.put(rm, trackingService);
+                    }
+                }
+                mByShard.add(replicas);
+            }
+        }
+    }
+
+    /*
+    * The replies gathered by a fan out, keyed by RM name in arrival order.
+    * */
+    private static class Replies {
+        private final Map<String, Message> mCounted = new LinkedHashMap<>();
+        private final int mRequired;
+        private Message mOther;
+
+        Replies(int required) {
+            mRequired = required;
+        }
+
+        boolean reachedQuorum() {
+            return mCounted.size() >= mRequired;
+        }
+
+        /*
+        * A replica's own failure reply when there is one, otherwise a failure reply to the request.
+        * */
+        Message failureReply(Message request) {
+            if (mOther != null) {
+                return mOther;
+            }
+            RPCMessage rpcMessageRequest = request.unMarshal();
+            RPCMessage rpcMessageReply = new RPCMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(rpcMessageRequest.getTransactionId());
+            rpcMessageReply.setRPCId(rpcMessageRequest.getRPCId());
+            rpcMessageReply.setRequestId(rpcMessageRequest.getRequestId());
+            rpcMessageReply.setProcedureId(rpcMessageRequest.getProcedureId());
+            rpcMessageReply.clearFields();
+            rpcMessageReply.setStatus(FAILURE_STATUS);
+            Message messageReply = new Message();
+            messageReply.marshal(rpcMessageReply);
+            return messageReply;
+        }
+    }
+
+    /*
+    * Allocate a tram id on the least loaded route, or -1 when none are free.
+    * */
+    @Override
+    public int getTramId() throws RemoteException {
+        return mTramIds.allocate();
+    }
+
+    /*
+    * Give a tram id back when the tram leaves service.
+    * */
+    @Override
+    public void releaseTramId(int tramId) throws RemoteException {
+        mTramIds.release(tramId);
+    }
+
+    @Override
+    public int getRoute(int tramId) throws RemoteException {
+        // The route the id was leased for, whichever network is current now. NO_ROUTE (-1) when not found.
+        return mTramIds.routeId(tramId);
     }
 
     @Override
     public int getFirstStop(int route) throws RemoteException {
-        return tramStops.get(route)[0];
+        return RouteNetwork.current().firstStop(route);
     }
 
     @Override
     public int getSecondStop(int route) throws RemoteException {
-        return tramStops.get(route)[1];
+        return RouteNetwork.current().secondStop(route);
     }
 
     @Override
     public long getRPCId() throws RemoteException {
-        RPCId++;
-        return RPCId;
+        return mRPCIds.leaseBlock(1);
+    }
+
+    /*
+    * Lease a block of consecutive RPC ids to a client, which then numbers its requests itself.
+    * */
+    @Override
+    public long leaseRPCIdBlock(int size) throws RemoteException {
+        return mRPCIds.leaseBlock(size);
     }
 }
 
-interface ConnectedToRmCallback {
-    void onConnected(boolean connected);
+interface ReplicaCall {
+    Message invoke(TrackingService trackingService, Message message) throws RemoteException;
 }
@@ -0,0 +1,243 @@
+package frontEndServer;
+
+import client.ClientCallback;
+import data.Message;
+import data.RPCMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static data.RPCMessage.MessageType.REPLY;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Pushes tram location events to subscribed clients.
+ * <p>
+ * Subscriptions are indexed by route, stop and tram, so publishing an event only touches the subscriptions that
+ * want it. Subscriptions change rarely and events are frequent, so each index entry is a copy on write set that is
+ * read without locking.
+ * <p>
+ * Each subscription has its own queue of at most ds2016.subscriptions.queueSize events, and at most one delivery in
+ * progress. Events arriving while a delivery is in progress are sent together in the next one, up to
+ * ds2016.subscriptions.batchSize at a time, so a busy subscriber gets fewer, larger callbacks. When a subscriber
+ * falls so far behind that its queue is full the oldest events are dropped, since a newer location of the same tram
+ * is usually in the queue behind them.
+ * <p>
+ * With one delivery at most per subscription, deliveries run on a cached pool that grows to the number of
+ * subscribers with events to send, so a slow callback only holds up its own subscriber. A subscriber whose callback
+ * fails, or takes more than ds2016.subscriptions.callbackTimeoutMs, is unsubscribed. A timed out callback's thread
+ * is left to the RMI response timeout.
+ *
+ * @author michael
+ */
+class SubscriptionManager {
+
+    private static final Logger logger = LogManager.getLogger(SubscriptionManager.class);
+
+    static final int QUEUE_SIZE = Integer.getInteger("ds2016.subscriptions.queueSize", 1024);
+    static final int BATCH_SIZE = Integer.getInteger("ds2016.subscriptions.batchSize", 256);
+    static final long CALLBACK_TIMEOUT_MS = Long.getLong("ds2016.subscriptions.callbackTimeoutMs", 5000);
+
+    private final Map<Long, Subscription> mSubscriptions = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Subscription>> mByRoute = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Subscription>> mByStop = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Subscription>> mByTram = new ConcurrentHashMap<>();
+    private final Set<Subscription> mFleet = new CopyOnWriteArraySet<>();
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final long mCallbackTimeoutMs;
+    private final ExecutorService mDeliveryExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService mTimeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "subscription-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SubscriptionManager() {
+        this(CALLBACK_TIMEOUT_MS);
+    }
+
+    SubscriptionManager(long callbackTimeoutMs) {
+        mCallbackTimeoutMs = callbackTimeoutMs;
+    }
+
+    /*
+    * Start pushing the events of a topic to a callback. Returns the subscription id.
+    * */
+    long subscribe(ClientCallback callback, SubscriptionTopic topic, int id) {
+        Subscription subscription = new Subscription(mNextId.getAndIncrement(), callback, topic, id);
+        mSubscriptions.put(subscription.mId, subscription);
+        subscribers(topic, id, true).add(subscription);
+        logger.info("Subscription " + subscription.mId + " to " + topic + " " + id);
+        return subscription.mId;
+    }
+
+    void unsubscribe(long subscriptionId) {
+        Subscription subscription = mSubscriptions.remove(subscriptionId);
+        if (subscription == null) {
+            return;
+        }
+        Set<Subscription> subscribers = subscribers(subscription.mTopic, subscription.mTopicId, false);
+        if (subscribers != null) {
+            subscribers.remove(subscription);
+        }
+        logger.info("Subscription " + subscriptionId + " ended");
+    }
+
+    boolean isEmpty() {
+        return mSubscriptions.isEmpty();
+    }
+
+    int size() {
+        return mSubscriptions.size();
+    }
+
+    /*
+    * Queue a tram location update for every subscription that follows it.
+    * */
+    void publish(int routeId, int tramId, int stopId, long timestamp) {
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        // Shared by every subscription, nobody writes to it.
+        long[] event = {routeId, tramId, stopId, timestamp};
+        publish(mFleet, event);
+        publish(mByRoute.get(routeId), event);
+        publish(mByStop.get(stopId), event);
+        publish(mByTram.get(tramId), event);
+    }
+
+    private void publish(Set<Subscription> subscribers, long[] event) {
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscription subscription : subscribers) {
+            if (subscription.offer(event)) {
+                mDeliveryExecutor.execute(() -> deliver(subscription));
+            }
+        }
+    }
+
+    /*
+    * Send the next batch of a subscription's events. Only one delivery per subscription runs at a time, and whatever
+    * happens to this one the next can start.
+    * */
+    private void deliver(Subscription subscription) {
+        ScheduledFuture<?> timeout = mTimeouts.schedule(() -> {
+            logger.warn("Unsubscribing " + subscription.mId + ", its callback took over " + mCallbackTimeoutMs + "ms");
+            unsubscribe(subscription.mId);
+        }, mCallbackTimeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            RPCMessage events = new RPCMessage();
+            events.setMessageType(REPLY);
+            events.setProcedureId(TRAM_EVENTS_PROCEDURE_ID);
+            events.setStatus(SUCCESS_STATUS);
+            events.clearFields();
+            for (long[] event : subscription.drain()) {
+                for (long field : event) {
+                    events.addField(field);
+                }
+            }
+            Message message = new Message();
+            message.marshal(events);
+
+            subscription.mCallback.onReply(message);
+        } catch (RemoteException | RuntimeException e) {
+            logger.warn("Unsubscribing " + subscription.mId + ", its callback failed: " + e.getMessage());
+            unsubscribe(subscription.mId);
+        } finally {
+            timeout.cancel(false);
+            if (subscription.finishDelivery() && mSubscriptions.containsKey(subscription.mId)) {
+                mDeliveryExecutor.execute(() -> deliver(subscription));
+            }
+        }
+    }
+
+    private Set<Subscription> subscribers(SubscriptionTopic topic, int id, boolean create) {
+        Map<Integer, Set<Subscription>> index;
+        switch (topic) {
+            case ROUTE:
+                index = mByRoute;
+                break;
+            case STOP:
+                index = mByStop;
+                break;
+            case TRAM:
+                index = mByTram;
+                break;
+            default:
+                return mFleet;
+        }
+        return create ? index.computeIfAbsent(id, key -> new CopyOnWriteArraySet<>()) : index.get(id);
+    }
+
+    /*
+    * A subscriber's callback and its bounded queue of events waiting to be delivered.
+    * */
+    private static class Subscription {
+        private final long mId;
+        private final ClientCallback mCallback;
+        private final SubscriptionTopic mTopic;
+        private final int mTopicId;
+        // Guarded by this.
+        private final ArrayDeque<long[]> mQueue = new ArrayDeque<>();
+        private boolean mDelivering;
+        private long mDropped;
+
+        Subscription(long id, ClientCallback callback, SubscriptionTopic topic, int topicId) {
+            mId = id;
+            mCallback = callback;
+            mTopic = topic;
+            mTopicId = topicId;
+        }
+
+        /*
+        * Queue an event. Returns true when a delivery has to be started for it.
+        * */
+        synchronized boolean offer(long[] event) {
+            if (mQueue.size() == QUEUE_SIZE) {
+                mQueue.poll();
+                if (mDropped++ % QUEUE_SIZE == 0) {
+                    logger.warn("Subscription " + mId + " is not keeping up, " + mDropped + " events dropped");
+                }
+            }
+            mQueue.add(event);
+            if (mDelivering) {
+                return false;
+            }
+            mDelivering = true;
+            return true;
+        }
+
+        synchronized long[][] drain() {
+            long[][] batch = new long[Math.min(BATCH_SIZE, mQueue.size())][];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = mQueue.poll();
+            }
+            return batch;
+        }
+
+        /*
+        * Returns true when more events arrived during the delivery and another one has to follow.
+        * */
+        synchronized boolean finishDelivery() {
+            mDelivering = !mQueue.isEmpty();
+            return mDelivering;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package frontEndServer;
+
+/**
+ * What a subscription follows: the trams on a route, the trams arriving at a stop, a single tram or every tram.
+ *
+ * @author michael
+ */
+public enum SubscriptionTopic {ROUTE, STOP, TRAM, FLEET}
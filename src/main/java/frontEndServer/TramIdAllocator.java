@@ -0,0 +1,302 @@
+package frontEndServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicationManagerServer.RouteNetwork;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import static replicationManagerServer.ReplicationManagerImpl.MAX_TRAMS_PER_ROUTE;
+
+/**
+ * Allocates tram ids with leases.
+ * <p>
+ * Ids are grouped by route, ds2016.trams.perRoute to a route, so a tram's route is its id divided by the route size.
+ * Each route keeps a stack of its free ids with every free id's position in it, so allocating, releasing and
+ * reclaiming an id are constant time. A new tram goes to the route with the most free ids, which keeps the routes
+ * evenly loaded. Routes are kept in lists by their number of free ids, so finding that route is constant time too.
+ * <p>
+ * Ids are laid out over the routes of the network current when the allocator is created, and the allocator keeps
+ * those routes' ids, so a tram stays on the route its id was leased for even if a reloaded network drops or reorders
+ * routes. A reloaded network only changes the routes ids map to once the front end restarts.
+ * <p>
+ * An allocated id is leased for ds2016.trams.leaseMs and the lease is renewed whenever the tram reports its location.
+ * Renewing only moves the id's expiry on, without taking the allocator's lock. Ids whose lease runs out are released
+ * in the background from a timer wheel with slots of an eighth of the lease, holding each allocated id once under the
+ * slot its lease was due to end in. When a slot comes round its ids are released if their lease has run out, or moved
+ * to the slot of their renewed expiry, so each id is looked at about once a lease rather than on every sweep. Trams
+ * that go away without releasing their id therefore do not drain the pool. A tram that reports in with an id that has
+ * been released gets it back if it is still free.
+ *
+ * @author michael
+ */
+class TramIdAllocator {
+
+    private static final Logger logger = LogManager.getLogger(TramIdAllocator.class);
+
+    static final int TRAMS_PER_ROUTE = Integer.getInteger("ds2016.trams.perRoute", MAX_TRAMS_PER_ROUTE);
+    static final long LEASE_MS = Long.getLong("ds2016.trams.leaseMs", 60000);
+
+    static final int NO_TRAM = -1;
+    private static final int NO_ROUTE = -1;
+    // The lease expiry of an id that is free.
+    private static final long FREE = Long.MIN_VALUE;
+
+    private final int mRoutes;
+    private final int[] mRouteIds;
+    private final long mLeaseMs;
+    private final long mTickMs;
+    private final LongSupplier mClock;
+    private final int[][] mFree;
+    private final int[] mFreeCount;
+    private final int[] mFreePosition;
+    // Written without the lock by renew, compared and set by everything else under it.
+    private final AtomicLongArray mLeaseExpiry;
+
+    // Doubly linked lists of the routes with each number of free ids, and the largest number any route has.
+    private final int[] mRoutesWithFree;
+    private final int[] mNextRoute;
+    private final int[] mPreviousRoute;
+    private int mMostFree;
+
+    private final int[][] mWheel;
+    private final int[] mWheelSize;
+    private final boolean[] mInWheel;
+    private long mNextTick;
+
+    TramIdAllocator() {
+        this(routeIds(RouteNetwork.current()), LEASE_MS, System::currentTimeMillis);
+    }
+
+    TramIdAllocator(int[] routeIds, long leaseMs, LongSupplier clock) {
+        mRoutes = routeIds.length;
+        mRouteIds = routeIds.clone();
+        mLeaseMs = leaseMs;
+        mTickMs = Math.max(1, leaseMs / 8);
+        mClock = clock;
+        mNextTick = clock.getAsLong() / mTickMs;
+        mFree = new int[mRoutes][TRAMS_PER_ROUTE];
+        mFreeCount = new int[mRoutes];
+        mFreePosition = new int[mRoutes * TRAMS_PER_ROUTE];
+        mLeaseExpiry = new AtomicLongArray(mRoutes * TRAMS_PER_ROUTE);
+        mRoutesWithFree = new int[TRAMS_PER_ROUTE + 1];
+        mNextRoute = new int[mRoutes];
+        mPreviousRoute = new int[mRoutes];
+        // More slots than a lease has ticks, so a renewed lease is never filed under a slot about to come round.
+        mWheel = new int[leaseMs > 0 ? (int) (leaseMs / mTickMs) + 2 : 0][];
+        mWheelSize = new int[mWheel.length];
+        mInWheel = new boolean[mRoutes * TRAMS_PER_ROUTE];
+
+        Arrays.fill(mRoutesWithFree, NO_ROUTE);
+        Arrays.fill(mWheel, new int[0]);
+        // Lowest ids on top of each stack, so each route hands its ids out in order.
+        for (int route = mRoutes - 1; route >= 0; route--) {
+            for (int i = TRAMS_PER_ROUTE - 1; i >= 0; i--) {
+                int tramId = route * TRAMS_PER_ROUTE + i;
+                mFreePosition[tramId] = mFreeCount[route];
+                mFree[route][mFreeCount[route]++] = tramId;
+                mLeaseExpiry.set(tramId, FREE);
+            }
+            link(route);
+        }
+        mMostFree = mRoutes > 0 ? TRAMS_PER_ROUTE : 0;
+    }
+
+    /*
+    * Release expired leases in the background, a wheel slot every tick. Leases never expire with a zero lease time.
+    * */
+    void start() {
+        if (mLeaseMs <= 0) {
+            return;
+        }
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tram-lease-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> releaseExpired(mClock.getAsLong()), mTickMs, mTickMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    * Allocate an id on the least loaded route. Returns NO_TRAM when every id is taken.
+    * */
+    synchronized int allocate() {
+        if (mMostFree == 0) {
+            return NO_TRAM;
+        }
+        int route = mRoutesWithFree[mMostFree];
+        int tramId = mFree[route][mFreeCount[route] - 1];
+        take(tramId);
+        return tramId;
+    }
+
+    /*
+    * Extend a tram's lease, taking its id back if it had been released and nobody else has it. An id that is still
+    * allocated only has its expiry moved on, racing the sweeper with a compare and set: either the renewal lands
+    * first and the sweeper leaves the id alone, or the sweeper frees it first and the id is taken back here.
+    * */
+    void renew(int tramId) {
+        if (!isValid(tramId)) {
+            return;
+        }
+        long expiry = leaseExpiry();
+        while (true) {
+            long current = mLeaseExpiry.get(tramId);
+            if (current == FREE) {
+                reclaim(tramId);
+                return;
+            }
+            if (current >= expiry || mLeaseExpiry.compareAndSet(tramId, current, expiry)) {
+                return;
+            }
+        }
+    }
+
+    synchronized void release(int tramId) {
+        if (isValid(tramId) && mLeaseExpiry.getAndSet(tramId, FREE) != FREE) {
+            push(tramId);
+        }
+    }
+
+    /*
+    * The id of the route a tram id belongs to, or RouteNetwork.NO_ROUTE for an id out of range.
+    * */
+    int routeId(int tramId) {
+        return isValid(tramId) ? mRouteIds[tramId / TRAMS_PER_ROUTE] : RouteNetwork.NO_ROUTE;
+    }
+
+    private static int[] routeIds(RouteNetwork network) {
+        int[] routeIds = new int[network.routeCount()];
+        for (int i = 0; i < routeIds.length; i++) {
+            routeIds[i] = network.routeId(i);
+        }
+        return routeIds;
+    }
+
+    private boolean isValid(int tramId) {
+        return tramId >= 0 && tramId < mLeaseExpiry.length();
+    }
+
+    private synchronized void reclaim(int tramId) {
+        if (mLeaseExpiry.get(tramId) == FREE) {
+            take(tramId);
+        }
+    }
+
+    /*
+    * Work through the wheel slots whose tick has passed. Each id in a slot is released if its lease has run out, or
+    * filed under the slot of its renewed expiry, and ids released since they were filed are dropped.
+    * */
+    synchronized int releaseExpired(long now) {
+        int released = 0;
+        long nowTick = now / mTickMs;
+        // After a long pause, going once round the wheel visits every id.
+        mNextTick = Math.max(mNextTick, nowTick - mWheel.length + 1);
+        while (mNextTick <= nowTick) {
+            // Moved on first, so an id due later in this tick is filed under the next one.
+            int slot = (int) (mNextTick++ % mWheel.length);
+            int[] tramIds = mWheel[slot];
+            int size = mWheelSize[slot];
+            mWheel[slot] = new int[0];
+            mWheelSize[slot] = 0;
+            for (int i = 0; i < size; i++) {
+                int tramId = tramIds[i];
+                mInWheel[tramId] = false;
+                long expiry = mLeaseExpiry.get(tramId);
+                if (expiry == FREE) {
+                    continue;
+                }
+                if (expiry <= now && mLeaseExpiry.compareAndSet(tramId, expiry, FREE)) {
+                    push(tramId);
+                    released++;
+                } else {
+                    schedule(tramId);
+                }
+            }
+        }
+        if (released > 0) {
+            logger.info("Released " + released + " tram ids with expired leases");
+        }
+        return released;
+    }
+
+    /*
+    * File an allocated id under the wheel slot of its lease expiry, unless it is already in the wheel. An id filed
+    * under an earlier slot is moved on when that slot comes round.
+    * */
+    private void schedule(int tramId) {
+        if (mWheel.length == 0 || mInWheel[tramId]) {
+            return;
+        }
+        long tick = Math.max(mNextTick, mLeaseExpiry.get(tramId) / mTickMs);
+        int slot = (int) (tick % mWheel.length);
+        if (mWheelSize[slot] == mWheel[slot].length) {
+            mWheel[slot] = Arrays.copyOf(mWheel[slot], Math.max(16, mWheelSize[slot] * 2));
+        }
+        mWheel[slot][mWheelSize[slot]++] = tramId;
+        mInWheel[tramId] = true;
+    }
+
+    /*
+    * Remove a free id from its route's stack by moving the top of the stack into its place.
+    * */
+    private void take(int tramId) {
+        int route = tramId / TRAMS_PER_ROUTE;
+        int position = mFreePosition[tramId];
+        unlink(route);
+        int top = mFree[route][--mFreeCount[route]];
+        mFree[route][position] = top;
+        mFreePosition[top] = position;
+        link(route);
+        if (mRoutesWithFree[mMostFree] == NO_ROUTE) {
+            mMostFree--;
+        }
+        mLeaseExpiry.set(tramId, leaseExpiry());
+        schedule(tramId);
+    }
+
+    private void push(int tramId) {
+        int route = tramId / TRAMS_PER_ROUTE;
+        unlink(route);
+        mFreePosition[tramId] = mFreeCount[route];
+        mFree[route][mFreeCount[route]++] = tramId;
+        link(route);
+        mMostFree = Math.max(mMostFree, mFreeCount[route]);
+    }
+
+    /*
+    * Add a route to the front of the list for its number of free ids.
+    * */
+    private void link(int route) {
+        int head = mRoutesWithFree[mFreeCount[route]];
+        mNextRoute[route] = head;
+        mPreviousRoute[route] = NO_ROUTE;
+        if (head != NO_ROUTE) {
+            mPreviousRoute[head] = route;
+        }
+        mRoutesWithFree[mFreeCount[route]] = route;
+    }
+
+    private void unlink(int route) {
+        int next = mNextRoute[route];
+        int previous = mPreviousRoute[route];
+        if (previous == NO_ROUTE) {
+            mRoutesWithFree[mFreeCount[route]] = next;
+        } else {
+            mNextRoute[previous] = next;
+        }
+        if (next != NO_ROUTE) {
+            mPreviousRoute[next] = previous;
+        }
+    }
+
+    private long leaseExpiry() {
+        return mLeaseMs > 0 ? mClock.getAsLong() + mLeaseMs : Long.MAX_VALUE;
+    }
+}
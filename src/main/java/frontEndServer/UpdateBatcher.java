@@ -0,0 +1,180 @@
+package frontEndServer;
+
+import data.HybridLogicalClock;
+import data.Message;
+import data.MessageCodec;
+import data.RPCMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import replicationManagerServer.RouteNetwork;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static data.RPCMessage.MessageType.REPLY;
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Coalesces single tram location updates into batched updateTramLocations calls.
+ * <p>
+ * Updates arriving within the batch window, up to the maximum batch size, are sent to the replicas as one message.
+ * The per entry statuses of the batch reply are then turned back into a reply for each waiting caller. Each update is
+ * stamped with the front end's clock as it is queued, so replicas apply concurrent updates to a tram in the same order.
+ * A zero window sends each update as soon as the flusher picks it up.
+ *
+ * @author michael
+ */
+class UpdateBatcher {
+
+    private static final Logger logger = LogManager.getLogger(UpdateBatcher.class);
+
+    static final long BATCH_WINDOW_MS = Long.getLong("ds2016.batch.windowMs", 2);
+    static final int BATCH_MAX_ENTRIES = Integer.getInteger("ds2016.batch.maxEntries", 256);
+
+    private final BlockingQueue<PendingUpdate> mPending = new LinkedBlockingQueue<>();
+    private final BatchSender mBatchSender;
+    private final HybridLogicalClock mClock;
+    private final RPCIdAllocator mRPCIds;
+    private final Executor mExecutor;
+
+    UpdateBatcher(BatchSender batchSender, HybridLogicalClock clock, RPCIdAllocator rpcIds, Executor executor) {
+        mBatchSender = batchSender;
+        mClock = clock;
+        mRPCIds = rpcIds;
+        mExecutor = executor;
+    }
+
+    void start() {
+        Thread flusher = new Thread(this::flushLoop, "update-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /*
+    * Queue a single, already validated, update request. The request is copied before this returns, so the caller may
+    * reuse it. The returned future completes with its reply once its batch has been acknowledged, or with the
+    * RemoteException the batch failed with.
+    * */
+    CompletableFuture<Message> submit(RPCMessage request) {
+        PendingUpdate pendingUpdate = new PendingUpdate(request, mClock.now());
+        mPending.add(pendingUpdate);
+        return pendingUpdate.mReply;
+    }
+
+    /*
+    * Collect updates until the window closes or the batch is full, then hand the batch off and start the next one.
+    * */
+    private void flushLoop() {
+        while (true) {
+            try {
+                List<PendingUpdate> batch = new ArrayList<>();
+                batch.add(mPending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < BATCH_MAX_ENTRIES) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingUpdate next = remaining > 0 ? mPending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    mPending.drainTo(batch, BATCH_MAX_ENTRIES - batch.size());
+                }
+                mExecutor.execute(() -> flush(batch));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void flush(List<PendingUpdate> batch) {
+        RPCMessage batchRequest = new RPCMessage();
+        batchRequest.setMessageType(REQUEST);
+        batchRequest.setRPCId(mRPCIds.leaseBlock(1));
+        batchRequest.setProcedureId(UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+        batchRequest.setStatus(SUCCESS_STATUS);
+        batchRequest.clearFields();
+        for (PendingUpdate pendingUpdate : batch) {
+            batchRequest.addField(pendingUpdate.mRouteId);
+            batchRequest.addField(pendingUpdate.mTramId);
+            batchRequest.addField(pendingUpdate.mStopId);
+            batchRequest.addField(pendingUpdate.mTimestamp);
+        }
+        Message batchMessage = new Message();
+        batchMessage.marshal(batchRequest);
+
+        try {
+            Message batchReply = mBatchSender.send(batchMessage);
+            RPCMessage reply = batchReply.isEmpty() ? null : batchReply.unMarshal(MessageCodec.get().scratchMessage());
+            boolean validReply = reply != null
+                    && reply.getMessageType() == REPLY
+                    && reply.getRPCId() == batchRequest.getRPCId()
+                    && reply.getFieldCount() == batch.size();
+            if (!validReply) {
+                logger.warn("Invalid reply to update batch " + batchRequest.getRPCId());
+            }
+            // Completing a reply runs its caller's continuation on this thread, which may reuse the scratch message.
+            short[] statuses = new short[batch.size()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = validReply ? (short) reply.getInt(i) : FAILURE_STATUS;
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                batch.get(i).complete(statuses[i]);
+            }
+        } catch (RemoteException e) {
+            for (PendingUpdate pendingUpdate : batch) {
+                pendingUpdate.mReply.completeExceptionally(e);
+            }
+        }
+    }
+
+    /*
+    * An update waiting to be batched, with the header needed to answer its caller.
+    * */
+    private static class PendingUpdate {
+        private final long mTransactionId;
+        private final long mRPCId;
+        private final long mRequestId;
+        private final int mRouteId;
+        private final int mTramId;
+        private final int mStopId;
+        private final long mTimestamp;
+        private final CompletableFuture<Message> mReply = new CompletableFuture<>();
+
+        PendingUpdate(RPCMessage request, long timestamp) {
+            mTransactionId = request.getTransactionId();
+            mRPCId = request.getRPCId();
+            mRequestId = request.getRequestId();
+            mRouteId = request.getInt(0);
+            mTramId = request.getInt(1);
+            mStopId = request.getInt(2);
+            mTimestamp = timestamp;
+        }
+
+        void complete(short status) {
+            RPCMessage rpcMessageReply = new RPCMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(mTransactionId);
+            rpcMessageReply.setRPCId(mRPCId);
+            rpcMessageReply.setRequestId(mRequestId);
+            rpcMessageReply.setProcedureId(UPDATE_TRAM_LOCATION_PROCEDURE_ID);
+            rpcMessageReply.clearFields();
+            // Lets the tram notice that the route network it downloaded has changed.
+            rpcMessageReply.addField(RouteNetwork.current().version());
+            rpcMessageReply.setStatus(status);
+            Message messageReply = new Message();
+            messageReply.marshal(rpcMessageReply);
+            mReply.complete(messageReply);
+        }
+    }
+}
+
+interface BatchSender {
+    Message send(Message batch) throws RemoteException;
+}
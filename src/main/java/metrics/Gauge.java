@@ -0,0 +1,34 @@
+package metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read on demand, such as the number of live replicas.
+ *
+ * @author michael
+ */
+public final class Gauge implements GaugeMBean {
+
+    private final String mNode;
+    private final String mName;
+    private final LongSupplier mValue;
+
+    Gauge(String node, String name, LongSupplier value) {
+        mNode = node;
+        mName = name;
+        mValue = value;
+    }
+
+    @Override
+    public long getValue() {
+        return mValue.getAsLong();
+    }
+
+    void appendJson(StringBuilder line, long timeMillis) {
+        line.append("{\"time\":").append(timeMillis)
+                .append(",\"type\":\"gauge\",\"node\":\"").append(mNode)
+                .append("\",\"name\":\"").append(mName)
+                .append("\",\"value\":").append(getValue())
+                .append('}');
+    }
+}
@@ -0,0 +1,11 @@
+package metrics;
+
+/**
+ * JMX view of a gauge.
+ *
+ * @author michael
+ */
+public interface GaugeMBean {
+
+    long getValue();
+}
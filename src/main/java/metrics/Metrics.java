@@ -0,0 +1,158 @@
+package metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of every node in this JVM.
+ * <p>
+ * Each metric is registered as an MBean under the ds2016 domain, so it can be watched with jconsole or any other JMX
+ * client. Every ds2016.metrics.intervalMs the rates and percentiles move on to a new interval and, with
+ * ds2016.metrics.snapshot set, every metric is appended as a JSON line to metrics-&lt;pid&gt;.jsonl in
+ * ds2016.metrics.dir.
+ *
+ * @author michael
+ */
+public final class Metrics {
+
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    static final long INTERVAL_MS = Long.getLong("ds2016.metrics.intervalMs", 10000);
+    static final boolean SNAPSHOT = Boolean.parseBoolean(System.getProperty("ds2016.metrics.snapshot", "false"));
+    static final String SNAPSHOT_DIR = System.getProperty("ds2016.metrics.dir", "metrics");
+
+    private static final ConcurrentMap<String, ProcedureMetrics> procedures = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, ProcedureMetrics>> replicaCalls =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static long lastRoll = System.nanoTime();
+
+    static {
+        ScheduledExecutorService roller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        roller.scheduleAtFixedRate(Metrics::roll, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private Metrics() {}
+
+    /*
+    * The metrics of a procedure handled by a node.
+    * */
+    public static ProcedureMetrics procedure(String node, String procedure) {
+        return procedures.computeIfAbsent(node + "/" + procedure, key -> register(
+                new ProcedureMetrics("procedure", node, procedure),
+                "type=Procedure,node=" + node + ",name=" + procedure));
+    }
+
+    /*
+    * The metrics of the front end's calls of a procedure on one replica. Called per replica call, so a lookup does
+    * not allocate.
+    * */
+    public static ProcedureMetrics replicaCall(String replica, String procedure) {
+        ConcurrentMap<String, ProcedureMetrics> calls = replicaCalls.get(replica);
+        if (calls == null) {
+            calls = replicaCalls.computeIfAbsent(replica, key -> new ConcurrentHashMap<>());
+        }
+        ProcedureMetrics metrics = calls.get(procedure);
+        if (metrics == null) {
+            metrics = calls.computeIfAbsent(procedure, key -> register(
+                    new ProcedureMetrics("replicaCall", replica, procedure),
+                    "type=ReplicaCall,replica=" + replica + ",name=" + procedure));
+        }
+        return metrics;
+    }
+
+    /*
+    * Register a gauge, replacing any earlier one of the same name.
+    * */
+    public static void gauge(String node, String name, LongSupplier value) {
+        Gauge gauge = new Gauge(node, name, value);
+        gauges.put(node + "/" + name, gauge);
+        register(gauge, "type=Gauge,node=" + node + ",name=" + name);
+    }
+
+    private static <T> T register(T mBean, String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ds2016:" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mBean, name);
+        } catch (JMException e) {
+            logger.warn("Could not register metrics " + properties + ": " + e);
+        }
+        return mBean;
+    }
+
+    private static void roll() {
+        long now = System.nanoTime();
+        long intervalNanos = now - lastRoll;
+        lastRoll = now;
+        for (ProcedureMetrics metrics : procedures.values()) {
+            metrics.roll(intervalNanos);
+        }
+        for (ConcurrentMap<String, ProcedureMetrics> calls : replicaCalls.values()) {
+            for (ProcedureMetrics metrics : calls.values()) {
+                metrics.roll(intervalNanos);
+            }
+        }
+        if (SNAPSHOT) {
+            writeSnapshot();
+        }
+    }
+
+    private static void writeSnapshot() {
+        File file = new File(SNAPSHOT_DIR, "metrics-" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0]
+                + ".jsonl");
+        long timeMillis = System.currentTimeMillis();
+        StringBuilder line = new StringBuilder(256);
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8))) {
+                for (ProcedureMetrics metrics : procedures.values()) {
+                    line.setLength(0);
+                    metrics.appendJson(line, timeMillis);
+                    writer.append(line).append('\n');
+                }
+                for (ConcurrentMap<String, ProcedureMetrics> calls : replicaCalls.values()) {
+                    for (ProcedureMetrics metrics : calls.values()) {
+                        line.setLength(0);
+                        metrics.appendJson(line, timeMillis);
+                        writer.append(line).append('\n');
+                    }
+                }
+                for (Gauge gauge : gauges.values()) {
+                    line.setLength(0);
+                    gauge.appendJson(line, timeMillis);
+                    writer.append(line).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write metrics snapshot to " + file + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, error and retry counts and latencies of one procedure, on one node or on calls to one replica.
+ * <p>
+ * Recording never blocks: counters are LongAdders and latencies go into a wait-free HdrHistogram recorder, whose
+ * interval histogram is rolled over every ds2016.metrics.intervalMs for the rate and percentiles.
+ *
+ * @author michael
+ */
+public final class ProcedureMetrics implements ProcedureMetricsMBean {
+
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final String mType;
+    private final String mNode;
+    private final String mName;
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+    private final LongAdder mRetries = new LongAdder();
+    private final LongAdder mLatencyMicros = new LongAdder();
+    private final Recorder mRecorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+
+    // Written by the roller thread only.
+    private Histogram mRecycled;
+    private long mRolledRequests;
+    private long mRolledErrors;
+    private volatile Histogram mLastInterval;
+    private volatile double mRequestRate;
+    private volatile double mErrorRate;
+
+    ProcedureMetrics(String type, String node, String name) {
+        mType = type;
+        mNode = node;
+        mName = name;
+        // Histograms handed back to the recorder for reuse must have come from it.
+        mLastInterval = mRecorder.getIntervalHistogram();
+    }
+
+    /*
+    * Record a request that started at startNanos, as measured by System.nanoTime().
+    * */
+    public void record(long startNanos, boolean failed) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        mRequests.increment();
+        if (failed) {
+            mErrors.increment();
+        }
+        mLatencyMicros.add(latencyMicros);
+        mRecorder.recordValue(Math.min(Math.max(0, latencyMicros), HIGHEST_LATENCY_MICROS));
+    }
+
+    /*
+    * Record a retried request, answered with the reply it already got.
+    * */
+    public void recordRetry(long startNanos) {
+        mRetries.increment();
+        record(startNanos, false);
+    }
+
+    /*
+    * Start a new interval. Only called by the roller thread.
+    * */
+    void roll(long intervalNanos) {
+        Histogram interval = mRecorder.getIntervalHistogram(mRecycled);
+        mRecycled = mLastInterval;
+        mLastInterval = interval;
+
+        double seconds = Math.max(1e-9, intervalNanos / 1e9);
+        long requests = mRequests.sum();
+        long errors = mErrors.sum();
+        mRequestRate = (requests - mRolledRequests) / seconds;
+        mErrorRate = (errors - mRolledErrors) / seconds;
+        mRolledRequests = requests;
+        mRolledErrors = errors;
+    }
+
+    @Override
+    public long getRequests() {
+        return mRequests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return mErrors.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return mRetries.sum();
+    }
+
+    @Override
+    public double getRequestRate() {
+        return mRequestRate;
+    }
+
+    @Override
+    public double getErrorRate() {
+        return mErrorRate;
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long requests = mRequests.sum();
+        return requests == 0 ? 0 : (double) mLatencyMicros.sum() / requests;
+    }
+
+    @Override
+    public long getP50LatencyMicros() {
+        return mLastInterval.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP99LatencyMicros() {
+        return mLastInterval.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999LatencyMicros() {
+        return mLastInterval.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getMaxLatencyMicros() {
+        return mLastInterval.getMaxValue();
+    }
+
+    void appendJson(StringBuilder line, long timeMillis) {
+        Histogram interval = mLastInterval;
+        line.append("{\"time\":").append(timeMillis)
+                .append(",\"type\":\"").append(mType)
+                .append("\",\"node\":\"").append(mNode)
+                .append("\",\"name\":\"").append(mName)
+                .append("\",\"requests\":").append(getRequests())
+                .append(",\"errors\":").append(getErrors())
+                .append(",\"retries\":").append(getRetries())
+                .append(",\"requestRate\":").append(mRequestRate)
+                .append(",\"errorRate\":").append(mErrorRate)
+                .append(",\"meanMicros\":").append(getMeanLatencyMicros())
+                .append(",\"p50Micros\":").append(interval.getValueAtPercentile(50))
+                .append(",\"p99Micros\":").append(interval.getValueAtPercentile(99))
+                .append(",\"p999Micros\":").append(interval.getValueAtPercentile(99.9))
+                .append(",\"maxMicros\":").append(interval.getMaxValue())
+                .append('}');
+    }
+}
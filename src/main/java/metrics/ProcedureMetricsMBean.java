@@ -0,0 +1,30 @@
+package metrics;
+
+/**
+ * JMX view of a procedure's metrics. Counts and the mean are since start, the rate and percentiles cover the last
+ * ds2016.metrics.intervalMs.
+ *
+ * @author michael
+ */
+public interface ProcedureMetricsMBean {
+
+    long getRequests();
+
+    long getErrors();
+
+    long getRetries();
+
+    double getRequestRate();
+
+    double getErrorRate();
+
+    double getMeanLatencyMicros();
+
+    long getP50LatencyMicros();
+
+    long getP99LatencyMicros();
+
+    long getP999LatencyMicros();
+
+    long getMaxLatencyMicros();
+}
@@ -0,0 +1,241 @@
+package replicationManagerServer;
+
+import data.HybridLogicalClock;
+import data.Message;
+import data.MessageCodec;
+import data.RPCMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import transport.TrackingServiceClient;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static data.RPCMessage.MessageType.REPLY;
+import static data.RPCMessage.MessageType.REQUEST;
+import static replicationManagerServer.ReplicationManagerImpl.*;
+
+/**
+ * Background gossip that reconciles a replica's tram locations with its peers.
+ * <p>
+ * Every round the replica picks a random peer and walks their location digests down from the root. It sends its hashes
+ * for one level's nodes, the peer answers with its hashes for the children of those that differ, and the replica
+ * descends into the children that still differ, at most ds2016.gossip.maxNodes of them, until it reaches the leaves.
+ * The peer answers a level of leaves with its locations in them, which are applied last writer wins, and the locations
+ * in those leaves the peer is missing or holds older versions of are pushed back as one update batch. Replicas that
+ * agree exchange only the root hash, and ones that differ only touch the trams in the differing leaves. Replicas only
+ * gossip within their own shard.
+ *
+ * @author michael
+ */
+class AntiEntropy {
+
+    private static final Logger logger = LogManager.getLogger(AntiEntropy.class);
+
+    static final long GOSSIP_INTERVAL_MS = Long.getLong("ds2016.gossip.intervalMs", 1000);
+    // Differing nodes to descend into per level. Any beyond it are reconciled in later rounds.
+    static final int MAX_NODES = Integer.getInteger("ds2016.gossip.maxNodes", 256);
+
+    private final String mName;
+    private final LocationStore mStore;
+    private final HybridLogicalClock mClock;
+    private final Map<String, TrackingService> mPeers = new HashMap<>();
+    private final AtomicLong mRound = new AtomicLong();
+
+    AntiEntropy(String name, LocationStore store, HybridLogicalClock clock) {
+        mName = name;
+        mStore = store;
+        mClock = clock;
+    }
+
+    /*
+    * Gossip is switched off with a zero interval.
+    * */
+    void start() {
+        if (GOSSIP_INTERVAL_MS <= 0) {
+            return;
+        }
+        ScheduledExecutorService gossiper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, mName + "-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Spread the replicas' rounds out rather than have them all gossip at once.
+        long initialDelay = GOSSIP_INTERVAL_MS + ThreadLocalRandom.current().nextLong(GOSSIP_INTERVAL_MS);
+        gossiper.scheduleWithFixedDelay(this::gossipRound, initialDelay, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void gossipRound() {
+        Shards shards = Shards.current();
+        int shard = shards.shardOf(mName);
+        if (shard < 0) {
+            return;
+        }
+        List<String> peers = new ArrayList<>(shards.replicas(shard));
+        peers.remove(mName);
+        if (peers.isEmpty()) {
+            return;
+        }
+        String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+        try {
+            TrackingService trackingService = mPeers.get(peer);
+            if (trackingService == null) {
+                trackingService = connect(peer);
+                mPeers.put(peer, trackingService);
+            }
+            gossipWith(peer, trackingService);
+        } catch (NotBoundException | IOException e) {
+            // The peer is down, it is reconciled once it is back.
+            TrackingService trackingService = mPeers.remove(peer);
+            if (trackingService instanceof TrackingServiceClient) {
+                ((TrackingServiceClient) trackingService).close();
+            }
+        } catch (RuntimeException e) {
+            logger.warn(mName + " gossip with " + peer + " failed: " + e);
+        }
+    }
+
+    /*
+    * One push-pull exchange with a peer, descending from the root to the leaves that differ.
+    * */
+    private void gossipWith(String peer, TrackingService trackingService) throws RemoteException {
+        LocationDigest digest = mStore.getDigest();
+        int level = 0;
+        int[] nodes = {0};
+        int nodeCount = 1;
+        while (true) {
+            RPCMessage reply = compare(peer, trackingService, level, nodes, nodeCount);
+            if (reply == null) {
+                return;
+            }
+            if (level == LocationDigest.LEAF_LEVEL) {
+                reconcile(peer, trackingService, nodes, nodeCount, reply);
+                return;
+            }
+            level++;
+            nodes = new int[Math.min(MAX_NODES, reply.getFieldCount() / 2)];
+            nodeCount = 0;
+            for (int i = 1; i < reply.getFieldCount() && nodeCount < nodes.length; i += 2) {
+                int child = reply.getInt(i);
+                if (reply.getLong(i + 1) != digest.get(level, child)) {
+                    nodes[nodeCount++] = child;
+                }
+            }
+            if (nodeCount == 0) {
+                return;
+            }
+        }
+    }
+
+    /*
+    * Send the peer our hashes for nodes on a level. Returns its reply, or null when it is invalid.
+    * */
+    private RPCMessage compare(String peer, TrackingService trackingService, int level, int[] nodes, int nodeCount)
+            throws RemoteException {
+        LocationDigest digest = mStore.getDigest();
+        RPCMessage request = new RPCMessage();
+        request.setMessageType(REQUEST);
+        request.setRPCId(mRound.incrementAndGet());
+        request.setProcedureId(GOSSIP_DIGEST_PROCEDURE_ID);
+        request.setStatus(SUCCESS_STATUS);
+        request.clearFields();
+        request.addField(level);
+        for (int i = 0; i < nodeCount; i++) {
+            request.addField(nodes[i]);
+            request.addField(digest.get(level, nodes[i]));
+        }
+        Message requestMessage = new Message();
+        requestMessage.marshal(request);
+
+        Message replyMessage = trackingService.gossipDigest(requestMessage);
+        RPCMessage reply = replyMessage == null || replyMessage.isEmpty()
+                ? null : replyMessage.unMarshal(MessageCodec.get().scratchMessage());
+        if (reply == null || reply.getMessageType() != REPLY || reply.getRPCId() != request.getRPCId()
+                || reply.getStatus() != SUCCESS_STATUS || !isDigestReply(reply, level)) {
+            logger.warn(mName + " got an invalid gossip reply from " + peer);
+            return null;
+        }
+        return reply;
+    }
+
+    /*
+    * Below the leaves a reply is the next level and (child, hash) pairs on it, at the leaves it is LEVELS and
+    * (route, tram, stop, timestamp) entries.
+    * */
+    private static boolean isDigestReply(RPCMessage reply, int level) {
+        if (reply.getFieldCount() < 1) {
+            return false;
+        }
+        if (level == LocationDigest.LEAF_LEVEL) {
+            return reply.getLong(0) == LocationDigest.LEVELS
+                    && reply.getFieldCount() % UPDATE_BATCH_ENTRY_FIELDS == 1;
+        }
+        if (reply.getLong(0) != level + 1 || reply.getFieldCount() % 2 != 1) {
+            return false;
+        }
+        for (int i = 1; i < reply.getFieldCount(); i += 2) {
+            if (!LocationDigest.isNode(level + 1, reply.getLong(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * Apply the peer's locations in the differing leaves and push back ours that it is missing or has older.
+    * */
+    private void reconcile(String peer, TrackingService trackingService, int[] leaves, int leafCount,
+                           RPCMessage reply) throws RemoteException {
+        // Pull: apply the peer's locations, keeping whichever is newer.
+        Map<Integer, TramLocation> peerLocations = new HashMap<>();
+        for (int i = 1; i < reply.getFieldCount(); i += UPDATE_BATCH_ENTRY_FIELDS) {
+            int tramId = reply.getInt(i + 1);
+            TramLocation location = new TramLocation(reply.getInt(i), reply.getInt(i + 2), reply.getLong(i + 3));
+            peerLocations.put(tramId, location);
+            mClock.update(location.getTimestamp());
+            // Only newer locations are logged, the peer sends back everything in the leaf.
+            if (location.supersedes(mStore.get(tramId))) {
+                mStore.put(tramId, location);
+            }
+        }
+
+        // Push: send back what the peer is missing or only has an older version of.
+        RPCMessage push = new RPCMessage();
+        push.setMessageType(REQUEST);
+        // Unnumbered, so the peer's reply cache never mistakes this push for one from another replica.
+        push.setRPCId(0);
+        push.setProcedureId(UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+        push.setStatus(SUCCESS_STATUS);
+        push.clearFields();
+        for (int i = 0; i < leafCount; i++) {
+            for (int tramId : mStore.getTramsInLeaf(leaves[i])) {
+                TramLocation location = mStore.get(tramId);
+                TramLocation peerLocation = peerLocations.get(tramId);
+                if (location != null && location.supersedes(peerLocation)) {
+                    push.addField(location.getRouteId());
+                    push.addField(tramId);
+                    push.addField(location.getStopId());
+                    push.addField(location.getTimestamp());
+                }
+            }
+        }
+        int pushed = push.getFieldCount() / UPDATE_BATCH_ENTRY_FIELDS;
+        if (pushed > 0) {
+            Message pushMessage = new Message();
+            pushMessage.marshal(push);
+            trackingService.updateTramLocations(pushMessage);
+        }
+        logger.info(mName + " reconciled " + leafCount + " leaves with " + peer + ": pulled "
+                + peerLocations.size() + ", pushed " + pushed);
+    }
+}
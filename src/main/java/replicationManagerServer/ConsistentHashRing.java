@@ -0,0 +1,61 @@
+package replicationManagerServer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring mapping integer keys to nodes.
+ * <p>
+ * Each node is placed on the ring at several virtual points, which evens out the share of keys each node gets and
+ * means adding or removing a node only moves the keys of its own points. The ring is a sorted array of points, so a
+ * lookup is a binary search and does not allocate.
+ *
+ * @author michael
+ */
+public final class ConsistentHashRing {
+
+    private final long[] mPoints;
+    private final int[] mPointNodes;
+
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one virtual node per node");
+        }
+        int points = nodes.size() * virtualNodes;
+        long[] hashes = new long[points];
+        long[] sortable = new long[points];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int virtualNode = 0; virtualNode < virtualNodes; virtualNode++) {
+                int point = node * virtualNodes + virtualNode;
+                hashes[point] = mix(((long) nodes.get(node).hashCode() << 32) ^ virtualNode);
+                sortable[point] = hashes[point];
+            }
+        }
+        Arrays.sort(sortable);
+        mPoints = sortable;
+        mPointNodes = new int[points];
+        for (int point = 0; point < points; point++) {
+            mPointNodes[Arrays.binarySearch(mPoints, hashes[point])] = point / virtualNodes;
+        }
+    }
+
+    /*
+    * The index of the node owning a key: the first point at or after the key's hash, wrapping round.
+    * */
+    public int nodeIndex(int key) {
+        int point = Arrays.binarySearch(mPoints, mix(key));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return mPointNodes[point == mPoints.length ? 0 : point];
+    }
+
+    /*
+    * SplitMix64 finaliser, spreads nearby keys across the ring.
+    * */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
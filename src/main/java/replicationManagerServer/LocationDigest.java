@@ -0,0 +1,90 @@
+package replicationManagerServer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Merkle tree digest of a replica's tram locations for anti-entropy.
+ * <p>
+ * Trams are spread over LEAVES leaves by a hash of their id, and the leaves are the bottom level of a tree with FANOUT
+ * children per node. Every node keeps the XOR of a hash of every (tram, location) below it, so a location change is
+ * folded into its leaf and each ancestor without rehashing anything else. Two replicas hold the same locations under
+ * a node exactly when (barring hash collisions) the node's hashes match, so replicas compare roots and descend only
+ * into the children that differ. The work of a comparison grows with the number of differing trams, not the fleet.
+ *
+ * @author michael
+ */
+final class LocationDigest {
+
+    static final int FANOUT = 16;
+    // The root is level 0 and the leaves are level LEVELS - 1.
+    static final int LEVELS = 4;
+    static final int LEAF_LEVEL = LEVELS - 1;
+    static final int LEAVES = 1 << (Integer.numberOfTrailingZeros(FANOUT) * LEAF_LEVEL);
+
+    private static final int FANOUT_BITS = Integer.numberOfTrailingZeros(FANOUT);
+
+    private final AtomicLongArray[] mLevels = new AtomicLongArray[LEVELS];
+
+    LocationDigest() {
+        for (int level = 0; level < LEVELS; level++) {
+            mLevels[level] = new AtomicLongArray(nodes(level));
+        }
+    }
+
+    /*
+    * The number of nodes on a level.
+    * */
+    static int nodes(int level) {
+        return 1 << (FANOUT_BITS * level);
+    }
+
+    static boolean isNode(long level, long node) {
+        return level >= 0 && level < LEVELS && node >= 0 && node < nodes((int) level);
+    }
+
+    static int leaf(int tramId) {
+        return (int) (mix(tramId) >>> (Long.SIZE - FANOUT_BITS * LEAF_LEVEL));
+    }
+
+    /*
+    * Account for a tram's location changing from previous, which may be null, to current.
+    * */
+    void replace(int tramId, TramLocation previous, TramLocation current) {
+        long change = hash(tramId, previous) ^ hash(tramId, current);
+        if (change != 0) {
+            int node = leaf(tramId);
+            for (int level = LEAF_LEVEL; level >= 0; level--) {
+                AtomicLongArray hashes = mLevels[level];
+                long hash;
+                do {
+                    hash = hashes.get(node);
+                } while (!hashes.compareAndSet(node, hash, hash ^ change));
+                node >>>= FANOUT_BITS;
+            }
+        }
+    }
+
+    long get(int level, int node) {
+        return mLevels[level].get(node);
+    }
+
+    static int firstChild(int node) {
+        return node << FANOUT_BITS;
+    }
+
+    private static long hash(int tramId, TramLocation location) {
+        if (location == null) {
+            return 0;
+        }
+        long hash = mix(tramId);
+        hash = mix(hash ^ location.getRouteId());
+        hash = mix(hash ^ location.getStopId());
+        return mix(hash ^ location.getTimestamp());
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,570 @@
+package replicationManagerServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durable store of tram locations for one replication manager.
+ * <p>
+ * Every update is appended to a memory-mapped write-ahead log segment of fixed size, checksummed records before it is
+ * applied to the in-memory map. When a segment fills up, or enough records have been written, the store rotates to a
+ * new segment and writes a snapshot of the map in the background, after which the older segments are kept mapped as
+ * spares for later rotations. On start-up the latest snapshot is loaded and any newer segments are replayed up to the
+ * first record that fails its checksum.
+ * <p>
+ * The log lives in ds2016.wal.dir, by default .ds2016/wal in the user's home directory.
+ * <p>
+ * Durability is chosen with ds2016.wal.durability:
+ * BATCH forces the log before an update is acknowledged, sharing one force between every writer waiting at the time
+ * (group commit); INTERVAL forces it every ds2016.wal.syncIntervalMs; NONE leaves it to the operating system.
+ * <p>
+ * The trams on each route and at each stop are indexed as locations are applied, so those questions are answered
+ * without scanning every tram.
+ *
+ * @author michael
+ */
+public class LocationStore {
+
+    private static final Logger logger = LogManager.getLogger(LocationStore.class);
+
+    public enum Durability {BATCH, INTERVAL, NONE}
+
+    static final boolean WAL_ENABLED = Boolean.parseBoolean(System.getProperty("ds2016.wal.enabled", "true"));
+    static final String WAL_DIR = System.getProperty("ds2016.wal.dir",
+            new File(System.getProperty("user.home"), ".ds2016" + File.separator + "wal").getPath());
+    static final Durability DURABILITY =
+            Durability.valueOf(System.getProperty("ds2016.wal.durability", Durability.INTERVAL.name()).toUpperCase());
+    static final long SYNC_INTERVAL_MS = Long.getLong("ds2016.wal.syncIntervalMs", 50);
+    static final int SEGMENT_BYTES = Integer.getInteger("ds2016.wal.segmentBytes", 8 * 1024 * 1024);
+    static final int SNAPSHOT_EVERY = Integer.getInteger("ds2016.wal.snapshotEvery", 100000);
+
+    /*
+    * Record layout: [int magic][int route][int tram][int stop][long timestamp][int crc32][4 padding], the checksum
+    * covering the segment's generation and the 24 bytes before it. Records are 32 bytes so none crosses a page boundary,
+    * but pages still reach the disk in no particular order, so only the checksum tells a torn record from a whole one.
+    * Spare segments are reused without being cleared, and the generation makes their old records fail it too.
+    * */
+    private static final int RECORD_BYTES = 32;
+    private static final int RECORD_CHECKED_BYTES = 24;
+    private static final int RECORD_MAGIC = 0x4C4F4332;
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;
+
+    private static final ThreadLocal<CRC32> CHECKSUMS = ThreadLocal.withInitial(CRC32::new);
+
+    private final Map<Integer, TramLocation> mLocations = new ConcurrentHashMap<>();
+    // Trams by digest leaf. A tram's leaf never changes, so it is only ever added.
+    private final Map<Integer, Set<Integer>> mTramsByLeaf = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> mTramsByRoute = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> mTramsByStop = new ConcurrentHashMap<>();
+    private final LocationDigest mDigest = new LocationDigest();
+    private final String mName;
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    private final int mSnapshotEvery;
+    private final ReadWriteLock mRotationLock = new ReentrantReadWriteLock();
+    private final AtomicLong mAppendSequence = new AtomicLong();
+    private final Object mSyncLock = new Object();
+    private long mSyncedSequence = 0;
+    private boolean mSyncing = false;
+    private volatile Segment mSegment;
+    private long mFirstGeneration;
+    private final Queue<Segment> mRotatedSegments = new ConcurrentLinkedQueue<>();
+    private final Queue<Segment> mSpareSegments = new ConcurrentLinkedQueue<>();
+    private ExecutorService mSnapshotExecutor;
+    private ScheduledExecutorService mSyncExecutor;
+
+    public LocationStore(String name) {
+        this(name, new File(WAL_DIR), SEGMENT_BYTES, SNAPSHOT_EVERY);
+    }
+
+    LocationStore(String name, File directory, int segmentBytes, int snapshotEvery) {
+        mName = name;
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mSnapshotEvery = snapshotEvery;
+        if (!WAL_ENABLED) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(mDirectory.toPath());
+            long generation = recover();
+            mFirstGeneration = generation + 1;
+            mSegment = new Segment(mFirstGeneration);
+            writeSnapshot(generation);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the location log for " + name, e);
+        }
+
+        mSnapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, mName + "-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (DURABILITY == Durability.INTERVAL) {
+            mSyncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, mName + "-wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mSyncExecutor.scheduleWithFixedDelay(() -> mSegment.force(), SYNC_INTERVAL_MS, SYNC_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        logger.info(mName + " recovered " + mLocations.size() + " tram locations");
+    }
+
+    /*
+    * Record a tram's location. Returns once the update is as durable as the configured durability asks for.
+    * */
+    public void put(int tramId, TramLocation location) {
+        if (!WAL_ENABLED) {
+            apply(tramId, location);
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            mRotationLock.readLock().lock();
+            try {
+                Segment segment = mSegment;
+                int slot = segment.claimSlot();
+                if (slot >= 0) {
+                    segment.write(slot, tramId, location);
+                    apply(tramId, location);
+                    sequence = mAppendSequence.incrementAndGet();
+                    if (slot + 1 == Math.min(segment.mSlots, mSnapshotEvery)) {
+                        mSnapshotExecutor.execute(() -> rotate(segment));
+                    }
+                    break;
+                }
+            } finally {
+                mRotationLock.readLock().unlock();
+            }
+            // The segment is full and has not been rotated yet.
+            rotate(mSegment);
+        }
+
+        if (DURABILITY == Durability.BATCH) {
+            awaitDurable(sequence);
+        }
+    }
+
+    public TramLocation get(int tramId) {
+        return mLocations.get(tramId);
+    }
+
+    public Map<Integer, TramLocation> getLocations() {
+        return mLocations;
+    }
+
+    /*
+    * Stop the background threads, waiting for a snapshot in progress. The log stays as it is, as after a crash.
+    * */
+    void close() throws InterruptedException {
+        if (mSyncExecutor != null) {
+            mSyncExecutor.shutdownNow();
+        }
+        if (mSnapshotExecutor != null) {
+            mSnapshotExecutor.shutdown();
+            mSnapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /*
+    * The trams last seen on a route. A tram moving at the same time may be in the set either side of the move, so
+    * check its location before relying on it.
+    * */
+    public Set<Integer> getTramsOnRoute(int routeId) {
+        Set<Integer> trams = mTramsByRoute.get(routeId);
+        return trams == null ? Collections.emptySet() : Collections.unmodifiableSet(trams);
+    }
+
+    /*
+    * The trams last seen at a stop, with the same caveat as getTramsOnRoute.
+    * */
+    public Set<Integer> getTramsAtStop(int stopId) {
+        Set<Integer> trams = mTramsByStop.get(stopId);
+        return trams == null ? Collections.emptySet() : Collections.unmodifiableSet(trams);
+    }
+
+    LocationDigest getDigest() {
+        return mDigest;
+    }
+
+    /*
+    * The trams hashed into a digest leaf, so anti-entropy reconciles a differing leaf without scanning every tram.
+    * */
+    Set<Integer> getTramsInLeaf(int leaf) {
+        Set<Integer> trams = mTramsByLeaf.get(leaf);
+        return trams == null ? Collections.emptySet() : Collections.unmodifiableSet(trams);
+    }
+
+    /*
+    * Apply an update if it is newer, keeping the digest and indexes in step with the map.
+    * */
+    private void apply(int tramId, TramLocation location) {
+        mLocations.compute(tramId, (id, current) -> {
+            if (!location.supersedes(current)) {
+                return current;
+            }
+            mDigest.replace(id, current, location);
+            if (current == null) {
+                mTramsByLeaf.computeIfAbsent(LocationDigest.leaf(id), key -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+            reindex(mTramsByRoute, id, current == null ? null : current.getRouteId(), location.getRouteId());
+            reindex(mTramsByStop, id, current == null ? null : current.getStopId(), location.getStopId());
+            return location;
+        });
+    }
+
+    /*
+    * Move a tram from one key's set to another's. Called while the tram's entry is being computed, so moves of the
+    * same tram never interleave.
+    * */
+    private static void reindex(Map<Integer, Set<Integer>> index, int tramId, Integer from, int to) {
+        if (from != null && from == to) {
+            return;
+        }
+        index.computeIfAbsent(to, key -> ConcurrentHashMap.newKeySet()).add(tramId);
+        if (from != null) {
+            index.get(from).remove(tramId);
+        }
+    }
+
+    /*
+    * Group commit. The first waiter forces the log for everything appended so far, the rest wait for it. Replay stops
+    * at the first bad record, so the force waits for every slot claimed before it to be written, otherwise a record
+    * still being written could hide an acknowledged one after it.
+    * */
+    private void awaitDurable(long sequence) {
+        while (true) {
+            long target;
+            Segment segment;
+            synchronized (mSyncLock) {
+                while (mSyncing && mSyncedSequence < sequence) {
+                    try {
+                        mSyncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (mSyncedSequence >= sequence) {
+                    return;
+                }
+                mSyncing = true;
+                target = mAppendSequence.get();
+                segment = mSegment;
+            }
+            // Earlier segments were forced when they were rotated out.
+            try {
+                segment.awaitClaimedWritten();
+                segment.force();
+            } finally {
+                synchronized (mSyncLock) {
+                    mSyncing = false;
+                    mSyncedSequence = Math.max(mSyncedSequence, target);
+                    mSyncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /*
+    * Switch to a spare or new segment and snapshot the state the old segments led to. Only the switch holds up writers,
+    * the snapshot is taken afterwards.
+    * */
+    private void rotate(Segment full) {
+        long generation;
+        mRotationLock.writeLock().lock();
+        try {
+            if (mSegment != full) {
+                return;
+            }
+            full.force();
+            generation = full.mGeneration;
+            Segment spare = mSpareSegments.poll();
+            if (spare != null) {
+                spare.reuse(generation + 1);
+                mSegment = spare;
+            } else {
+                mSegment = new Segment(generation + 1);
+            }
+            mRotatedSegments.add(full);
+        } catch (IOException e) {
+            logger.warn(mName + " could not rotate the location log: " + e);
+            return;
+        } finally {
+            mRotationLock.writeLock().unlock();
+        }
+
+        mSnapshotExecutor.execute(() -> {
+            try {
+                writeSnapshot(generation);
+            } catch (IOException e) {
+                logger.warn(mName + " could not write a snapshot: " + e);
+            }
+        });
+    }
+
+    /*
+    * Write a snapshot covering every segment up to and including generation, then make this store's segments spares
+    * and delete the ones left over from before it started. The map is copied while writers carry on in the next segment,
+    * so the copy can hold some of their updates too. That is safe: locations only move forward and replaying an update
+    * the snapshot already has changes nothing.
+    * */
+    private void writeSnapshot(long generation) throws IOException {
+        Map<Integer, TramLocation> locations = new HashMap<>(mLocations);
+        File snapshotFile = snapshotFile();
+        File tmpFile = new File(mDirectory, mName + ".snapshot.tmp");
+        CRC32 crc32 = new CRC32();
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new CheckedOutputStream(fileOutputStream, crc32)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(locations.size());
+            for (Map.Entry<Integer, TramLocation> entry : locations.entrySet()) {
+                TramLocation location = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeInt(location.getRouteId());
+                out.writeInt(location.getStopId());
+                out.writeLong(location.getTimestamp());
+            }
+            out.flush();
+            // The checksum trailer itself is not covered.
+            new DataOutputStream(fileOutputStream).writeLong(crc32.getValue());
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        // A spare keeps its file and mapping, under a name replay skips, until a rotation renames it.
+        for (Iterator<Segment> iterator = mRotatedSegments.iterator(); iterator.hasNext(); ) {
+            Segment segment = iterator.next();
+            if (segment.mGeneration <= generation) {
+                iterator.remove();
+                mSpareSegments.add(segment);
+            }
+        }
+        for (long segmentGeneration : segmentGenerations()) {
+            if (segmentGeneration <= generation && segmentGeneration < mFirstGeneration) {
+                Files.deleteIfExists(segmentFile(segmentGeneration).toPath());
+            }
+        }
+    }
+
+    /*
+    * Load the snapshot and replay newer segments. Returns the newest generation seen.
+    * */
+    private long recover() throws IOException {
+        long generation = loadSnapshot();
+        long snapshotGeneration = generation;
+        for (long segmentGeneration : segmentGenerations()) {
+            if (segmentGeneration > snapshotGeneration) {
+                replay(segmentGeneration);
+            }
+            generation = Math.max(generation, segmentGeneration);
+        }
+        return generation;
+    }
+
+    /*
+    * Load the snapshot if there is a valid one. Returns the generation it covers, 0 when there is none.
+    * */
+    private long loadSnapshot() {
+        File snapshotFile = snapshotFile();
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+            int length = buffer.capacity() - 8;
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer.array(), 0, Math.max(0, length));
+            if (length < 16 || buffer.getLong(length) != crc32.getValue() || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad snapshot header or checksum");
+            }
+            long generation = buffer.getLong();
+            int count = buffer.getInt();
+            if ((long) count * 20 + 16 != length) {
+                throw new IOException("Bad snapshot length");
+            }
+            for (int i = 0; i < count; i++) {
+                int tramId = buffer.getInt();
+                apply(tramId, new TramLocation(buffer.getInt(), buffer.getInt(), buffer.getLong()));
+            }
+            return generation;
+        } catch (IOException e) {
+            logger.warn(mName + " ignoring unreadable snapshot: " + e);
+            return 0;
+        }
+    }
+
+    /*
+    * Apply a segment's records up to the first one that is missing or torn. Nothing after it was acknowledged as
+    * durable, see awaitDurable. The segment is read rather than mapped, a mapping would outlive the replay.
+    * */
+    private void replay(long generation) throws IOException {
+        File file = segmentFile(generation);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        CRC32 crc32 = new CRC32();
+        for (int offset = 0; offset + RECORD_BYTES <= buffer.capacity(); offset += RECORD_BYTES) {
+            if (buffer.getInt(offset) != RECORD_MAGIC) {
+                return;
+            }
+            if (buffer.getInt(offset + RECORD_CHECKED_BYTES) != checksum(crc32, generation, buffer, offset)) {
+                logger.warn(mName + " stopping replay of " + file.getName() + " at a torn or stale record, offset "
+                        + offset);
+                return;
+            }
+            apply(buffer.getInt(offset + 8), new TramLocation(buffer.getInt(offset + 4),
+                    buffer.getInt(offset + 12), buffer.getLong(offset + 16)));
+        }
+    }
+
+    /*
+    * The checksum of the record at offset in a segment of the given generation.
+    * */
+    private static int checksum(CRC32 crc32, long generation, ByteBuffer buffer, int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + RECORD_CHECKED_BYTES).position(offset);
+        crc32.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc32.update((int) (generation >>> shift));
+        }
+        crc32.update(record);
+        return (int) crc32.getValue();
+    }
+
+    private List<Long> segmentGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] files = mDirectory.list();
+        if (files != null) {
+            String prefix = mName + ".";
+            for (String file : files) {
+                if (file.startsWith(prefix) && file.endsWith(".wal")) {
+                    try {
+                        generations.add(Long.parseLong(file.substring(prefix.length(), file.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private File snapshotFile() {
+        return new File(mDirectory, mName + ".snapshot");
+    }
+
+    private File segmentFile(long generation) {
+        return new File(mDirectory, mName + "." + generation + ".wal");
+    }
+
+    /*
+    * One memory-mapped log file of fixed size record slots. Java 8 cannot unmap a file, so rather than leave retired
+    * mappings for the garbage collector a segment is renamed and reused once a snapshot covers it.
+    * */
+    private class Segment {
+        private long mGeneration;
+        private final MappedByteBuffer mBuffer;
+        private final int mSlots;
+        private final AtomicInteger mNextSlot = new AtomicInteger();
+        private final AtomicInteger mWrittenSlots = new AtomicInteger();
+
+        Segment(long generation) throws IOException {
+            mGeneration = generation;
+            // A leftover file from a crash before this generation's first snapshot holds nothing we need.
+            Files.deleteIfExists(segmentFile(generation).toPath());
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(generation), "rw");
+                 FileChannel channel = file.getChannel()) {
+                file.setLength(mSegmentBytes);
+                mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+            }
+            mSlots = mSegmentBytes / RECORD_BYTES;
+        }
+
+        /*
+        * Take the segment on as the given generation. Called under the rotation write lock, with no writers left in
+        * the segment. Its old records fail their checksums under the new generation.
+        * */
+        void reuse(long generation) throws IOException {
+            Files.move(segmentFile(mGeneration).toPath(), segmentFile(generation).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            mGeneration = generation;
+            mNextSlot.set(0);
+            mWrittenSlots.set(0);
+        }
+
+        /*
+        * Claim the next free slot, or -1 when the segment is full.
+        * */
+        int claimSlot() {
+            int slot = mNextSlot.getAndIncrement();
+            return slot < mSlots ? slot : -1;
+        }
+
+        void write(int slot, int tramId, TramLocation location) {
+            int offset = slot * RECORD_BYTES;
+            mBuffer.putInt(offset, RECORD_MAGIC);
+            mBuffer.putInt(offset + 4, location.getRouteId());
+            mBuffer.putInt(offset + 8, tramId);
+            mBuffer.putInt(offset + 12, location.getStopId());
+            mBuffer.putLong(offset + 16, location.getTimestamp());
+            mBuffer.putInt(offset + RECORD_CHECKED_BYTES, checksum(CHECKSUMS.get(), mGeneration, mBuffer, offset));
+            mWrittenSlots.incrementAndGet();
+        }
+
+        /*
+        * Wait until every slot claimed so far has been written. Writers fill a slot straight after claiming it, so
+        * this is a short spin.
+        * */
+        void awaitClaimedWritten() {
+            int claimed = Math.min(mNextSlot.get(), mSlots);
+            while (mWrittenSlots.get() < claimed) {
+                Thread.yield();
+            }
+        }
+
+        void force() {
+            if (DURABILITY != Durability.NONE) {
+                mBuffer.force();
+            }
+        }
+    }
+}
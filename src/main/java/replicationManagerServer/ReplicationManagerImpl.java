@@ -1,17 +1,30 @@
 package replicationManagerServer;
 
+import data.HybridLogicalClock;
 import data.Message;
+import data.MessageCodec;
 import data.RPCMessage;
+import data.ReplyCache;
+import metrics.Metrics;
+import metrics.ProcedureMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import tracing.Tracer;
+import transport.NioServer;
+import transport.TrackingServiceClient;
+import transport.TrackingServiceDispatcher;
+import transport.TransportMode;
 
+import java.io.IOException;
 import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import static data.RPCMessage.MessageType.REPLY;
 import static data.RPCMessage.MessageType.REQUEST;
@@ -25,39 +38,75 @@ public class ReplicationManagerImpl implements ReplicationManager, TrackingServi
 
     public static final short RETRIEVE_NEXT_STOP_PROCEDURE_ID = 1;
     public static final short UPDATE_TRAM_LOCATION_PROCEDURE_ID = 2;
+    public static final short UPDATE_TRAM_LOCATIONS_PROCEDURE_ID = 3;
+    public static final short RETRIEVE_TRAM_LOCATION_PROCEDURE_ID = 4;
+    public static final short GOSSIP_DIGEST_PROCEDURE_ID = 5;
+    public static final short RETRIEVE_TRAMS_ON_ROUTE_PROCEDURE_ID = 6;
+    public static final short RETRIEVE_TRAMS_AT_STOP_PROCEDURE_ID = 7;
+    public static final short TRAM_EVENTS_PROCEDURE_ID = 8;
+    public static final short RETRIEVE_ROUTE_NETWORK_PROCEDURE_ID = 9;
+    public static final int UPDATE_BATCH_ENTRY_FIELDS = 4;
     public static final short SUCCESS_STATUS = 0;
     public static final short FAILURE_STATUS = -1;
     public static final int MIN_SLEEP = 10;
     public static final int MAX_SLEEP = 20;
-    public static final int NUM_ROUTES = 5;
     public static final int MAX_TRAMS_PER_ROUTE = 5;
+    public static final int NUM_REPLICATION_MANAGERS = Integer.getInteger("ds2016.rms", 3);
 
-    public static int[] tramRoutes = {1, 96, 101, 109, 112};
-    public static Map<Integer, int[]> tramStops = new HashMap<>();
-    public static Map<Integer, Boolean> tramIds = new HashMap<>();
-    private Map<Integer, Integer> tramLocation = new HashMap<>();
+    public static Map<String, Integer> replicationManagers = new LinkedHashMap<>();
+    private static final ThreadLocal<RPCMessage> requestMessages = ThreadLocal.withInitial(RPCMessage::new);
+    private LocationStore tramLocation;
+    private final HybridLogicalClock clock = new HybridLogicalClock();
+    private final ReplyCache replyCache = new ReplyCache();
     private int mPort;
     private String mName;
+    private final ProcedureMetrics mNextStopMetrics;
+    private final ProcedureMetrics mUpdateMetrics;
+    private final ProcedureMetrics mUpdateBatchMetrics;
+    private final ProcedureMetrics mLocationMetrics;
+    private final ProcedureMetrics mGossipMetrics;
+    private final ProcedureMetrics mTramsOnRouteMetrics;
+    private final ProcedureMetrics mTramsAtStopMetrics;
 
     static {
-        tramStops.put(1, new int[]{1, 2, 3, 4, 5});
-        tramStops.put(96, new int[]{23, 24, 2, 34, 22});
-        tramStops.put(101, new int[]{123, 11, 22, 34, 5, 4, 7});
-        tramStops.put(109, new int[]{88, 87, 85, 80, 9, 7, 2, 1});
-        tramStops.put(112, new int[]{110, 123, 11, 22, 34, 33, 29, 4});
-
-        for (int i = 0; i < NUM_ROUTES * MAX_TRAMS_PER_ROUTE; i++) {
-            tramIds.put(i, false);
+        for (int i = 1; i <= NUM_REPLICATION_MANAGERS; i++) {
+            replicationManagers.put("rm" + i, 9317 + i);
         }
     }
 
     public ReplicationManagerImpl(int port, String name) {
         mPort = port;
         mName = name;
+        mNextStopMetrics = Metrics.procedure(mName, "retrieveNextStop");
+        mUpdateMetrics = Metrics.procedure(mName, "updateTramLocation");
+        mUpdateBatchMetrics = Metrics.procedure(mName, "updateTramLocations");
+        mLocationMetrics = Metrics.procedure(mName, "retrieveTramLocation");
+        mGossipMetrics = Metrics.procedure(mName, "gossipDigest");
+        mTramsOnRouteMetrics = Metrics.procedure(mName, "retrieveTramsOnRoute");
+        mTramsAtStopMetrics = Metrics.procedure(mName, "retrieveTramsAtStop");
+        tramLocation = new LocationStore(mName);
+        new AntiEntropy(mName, tramLocation, clock).start();
 
         System.out.println("Created replication manager server " + mName + " on port " + mPort + ", accepting connections...");
 
-        setupRMI(this);
+        if (TransportMode.current() == TransportMode.NIO) {
+            setupNio(this);
+        } else {
+            setupRMI(this);
+        }
+    }
+
+    /*
+     * Connect to the tracking service of the named replication manager over the current transport.
+     * */
+    public static TrackingService connect(String rm) throws IOException, NotBoundException {
+        String host = "localhost";
+        int port = replicationManagers.get(rm);
+        if (TransportMode.current() == TransportMode.NIO) {
+            return new TrackingServiceClient(host, TransportMode.nioPort(port));
+        }
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        return (TrackingService) registry.lookup("rmi://" + host + "/" + rm + "/");
     }
 
     /*
@@ -77,65 +126,69 @@ public class ReplicationManagerImpl implements ReplicationManager, TrackingServi
         }
     }
 
+    /*
+     * Serve the tracking service over the NIO transport instead.
+     * */
+    private void setupNio(TrackingService trackingService) {
+        int nioPort = TransportMode.nioPort(mPort);
+        try {
+            new NioServer(nioPort, new TrackingServiceDispatcher(trackingService)).start();
+            logger.info(mName + " listening for NIO connections on port " + nioPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    * Acknowledge a heartbeat from the front end's failure detector.
+    * */
+    @Override
+    public boolean heartbeat() throws RemoteException {
+        return true;
+    }
+
     @Override
     public Message retrieveNextStop(Message message) throws RemoteException {
         if (message == null) {
             return new Message();
         }
-        RPCMessage rpcMessageReceived = message.unMarshal();
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
         RPCMessage.MessageType type = rpcMessageReceived.getMessageType();
-        logger.info("type: " + type);
         long transactionId = rpcMessageReceived.getTransactionId();
-        logger.info("transactionId: " + transactionId);
         long RPCId = rpcMessageReceived.getRPCId();
-        logger.info("RPCId: " + RPCId);
         long requestId = rpcMessageReceived.getRequestId();
-        logger.info("requestId: " + requestId);
         short procedureId = rpcMessageReceived.getProcedureId();
-        logger.info("procedureId: " + procedureId);
-        String data = rpcMessageReceived.getCsv_data();
-        logger.info("data: " + data);
-        short status = rpcMessageReceived.getStatus();
-        logger.info("status: " + status);
 
         Message messageResponse = new Message();
 
         if (type == REQUEST && procedureId == RETRIEVE_NEXT_STOP_PROCEDURE_ID) {
-            RPCMessage rpcMessageReply = new RPCMessage();
+            Message cachedReply = replyCache.get(RPCId, requestId, procedureId);
+            if (cachedReply != null) {
+                mNextStopMetrics.recordRetry(startNanos);
+                Tracer.record(mName, "retrieveNextStop.cached", cachedReply, startNanos);
+                return cachedReply;
+            }
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
             rpcMessageReply.setMessageType(REPLY);
             rpcMessageReply.setTransactionId(transactionId);
             rpcMessageReply.setRPCId(RPCId);
             rpcMessageReply.setRequestId(requestId);
             rpcMessageReply.setProcedureId(procedureId);
 
-            String[] values = data.split(",");
-            int routeId = Integer.parseInt(values[0].trim());
-            logger.info("RouteId: " + routeId);
-            int currentStop = Integer.parseInt(values[1]);
-            logger.info("CurrentStop: " + currentStop);
-            int previousStop = Integer.parseInt(values[2]);
-            logger.info("PreviousStop: " + previousStop);
-
-            int[] stops = tramStops.get(routeId);
-            int currentStopIndex;
-            int nextStop = -1;
-
-            // Find the next stop
-            for (int i = 0; i < stops.length; i++) {
-                if (stops[i] == currentStop) {
-                    currentStopIndex = i;
-                    if (currentStopIndex == 0 ||
-                            currentStopIndex != stops.length - 1 && previousStop == stops[currentStopIndex - 1]) {
-                        // The tram is going right
-                        nextStop = stops[currentStopIndex + 1];
-                    } else {
-                        // The tram is going left
-                        nextStop = stops[currentStopIndex - 1];
-                    }
-                    break;
-                }
+            if (rpcMessageReceived.getFieldCount() != 3) {
+                rpcMessageReply.setFields(-1);
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+                messageResponse.marshal(rpcMessageReply);
+                return messageResponse;
             }
-            rpcMessageReply.setCsv_data(Integer.toString(nextStop));
+            int routeId = rpcMessageReceived.getInt(0);
+            int currentStop = rpcMessageReceived.getInt(1);
+            int previousStop = rpcMessageReceived.getInt(2);
+
+            int nextStop = RouteNetwork.current().nextStop(routeId, currentStop, previousStop);
+            rpcMessageReply.clearFields();
+            rpcMessageReply.addField(nextStop);
 
             if (nextStop == -1) {
                 rpcMessageReply.setStatus(FAILURE_STATUS);
@@ -144,6 +197,9 @@ public class ReplicationManagerImpl implements ReplicationManager, TrackingServi
             }
 
             messageResponse.marshal(rpcMessageReply);
+            replyCache.put(RPCId, requestId, procedureId, messageResponse);
+            mNextStopMetrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, "retrieveNextStop", rpcMessageReply, startNanos);
             return messageResponse;
         } else {
             // Ignore the message
@@ -153,52 +209,289 @@ public class ReplicationManagerImpl implements ReplicationManager, TrackingServi
 
     @Override
     public Message updateTramLocation(Message message) throws RemoteException {
-        RPCMessage rpcMessageReceived = message.unMarshal();
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
         RPCMessage.MessageType type = rpcMessageReceived.getMessageType();
-        logger.info("type: " + type);
         long transactionId = rpcMessageReceived.getTransactionId();
-        logger.info("transactionId: " + transactionId);
         long RPCId = rpcMessageReceived.getRPCId();
-        logger.info("RPCId: " + RPCId);
         long requestId = rpcMessageReceived.getRequestId();
-        logger.info("requestId: " + requestId);
         short procedureId = rpcMessageReceived.getProcedureId();
-        logger.info("procedureId: " + procedureId);
-        String data = rpcMessageReceived.getCsv_data();
-        logger.info("data: " + data);
-        short status = rpcMessageReceived.getStatus();
-        logger.info("status: " + status);
 
         Message messageResponse = new Message();
 
         if (type == REQUEST && procedureId == UPDATE_TRAM_LOCATION_PROCEDURE_ID) {
-            RPCMessage rpcMessageReply = new RPCMessage();
+            // A retried update was already applied, answer it without applying it again.
+            Message cachedReply = replyCache.get(RPCId, requestId, procedureId);
+            if (cachedReply != null) {
+                mUpdateMetrics.recordRetry(startNanos);
+                Tracer.record(mName, "updateTramLocation.cached", cachedReply, startNanos);
+                return cachedReply;
+            }
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
             rpcMessageReply.setMessageType(REPLY);
             rpcMessageReply.setTransactionId(transactionId);
             rpcMessageReply.setRPCId(RPCId);
             rpcMessageReply.setRequestId(requestId);
             rpcMessageReply.setProcedureId(procedureId);
 
-            String[] values = data.split(",");
-            int routeId = Integer.parseInt(values[0].trim());
-            logger.info("RouteId: " + routeId);
-            int tramId = Integer.parseInt(values[1]);
-            logger.info("TramId: " + tramId);
-            int stopId = Integer.parseInt(values[2]);
-            logger.info("StopId: " + stopId);
+            if (rpcMessageReceived.getFieldCount() != 3) {
+                rpcMessageReply.setFields();
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+                messageResponse.marshal(rpcMessageReply);
+                return messageResponse;
+            }
+            int routeId = rpcMessageReceived.getInt(0);
+            int tramId = rpcMessageReceived.getInt(1);
+            int stopId = rpcMessageReceived.getInt(2);
 
-            tramLocation.put(tramId, stopId);
+            applyLocationUpdate(routeId, tramId, stopId, 0);
 
-            rpcMessageReply.setCsv_data("");
+            rpcMessageReply.clearFields();
+            rpcMessageReply.addField(RouteNetwork.current().version());
             rpcMessageReply.setStatus(SUCCESS_STATUS);
             messageResponse.marshal(rpcMessageReply);
+            replyCache.put(RPCId, requestId, procedureId, messageResponse);
+            mUpdateMetrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, "updateTramLocation", rpcMessageReply, startNanos);
             return messageResponse;
         }
 
-        System.out.println("\n\n");
         return messageResponse;
     }
 
+    /*
+    * Apply a batch of tram location updates. The reply carries one status per entry, in request order.
+    * */
+    @Override
+    public Message updateTramLocations(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
+        Message messageResponse = new Message();
+
+        if (rpcMessageReceived.getMessageType() == REQUEST
+                && rpcMessageReceived.getProcedureId() == UPDATE_TRAM_LOCATIONS_PROCEDURE_ID) {
+            Message cachedReply = replyCache.get(rpcMessageReceived.getRPCId(), rpcMessageReceived.getRequestId(),
+                    UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+            if (cachedReply != null) {
+                mUpdateBatchMetrics.recordRetry(startNanos);
+                Tracer.record(mName, "updateTramLocations.cached", cachedReply, startNanos);
+                return cachedReply;
+            }
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(rpcMessageReceived.getTransactionId());
+            rpcMessageReply.setRPCId(rpcMessageReceived.getRPCId());
+            rpcMessageReply.setRequestId(rpcMessageReceived.getRequestId());
+            rpcMessageReply.setProcedureId(UPDATE_TRAM_LOCATIONS_PROCEDURE_ID);
+            rpcMessageReply.clearFields();
+
+            int fieldCount = rpcMessageReceived.getFieldCount();
+            if (fieldCount % UPDATE_BATCH_ENTRY_FIELDS != 0) {
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+            } else {
+                for (int i = 0; i < fieldCount; i += UPDATE_BATCH_ENTRY_FIELDS) {
+                    applyLocationUpdate(rpcMessageReceived.getInt(i), rpcMessageReceived.getInt(i + 1),
+                            rpcMessageReceived.getInt(i + 2), rpcMessageReceived.getLong(i + 3));
+                    rpcMessageReply.addField(SUCCESS_STATUS);
+                }
+                rpcMessageReply.setStatus(SUCCESS_STATUS);
+            }
+            messageResponse.marshal(rpcMessageReply);
+            replyCache.put(rpcMessageReceived.getRPCId(), rpcMessageReceived.getRequestId(),
+                    UPDATE_TRAM_LOCATIONS_PROCEDURE_ID, messageResponse);
+            mUpdateBatchMetrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, "updateTramLocations", rpcMessageReply, startNanos);
+        }
+        return messageResponse;
+    }
+
+    /*
+    * Return the last known location of a tram as (route, stop, timestamp), so the front end can compare replicas.
+    * */
+    @Override
+    public Message retrieveTramLocation(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
+        Message messageResponse = new Message();
+
+        if (rpcMessageReceived.getMessageType() == REQUEST
+                && rpcMessageReceived.getProcedureId() == RETRIEVE_TRAM_LOCATION_PROCEDURE_ID) {
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(rpcMessageReceived.getTransactionId());
+            rpcMessageReply.setRPCId(rpcMessageReceived.getRPCId());
+            rpcMessageReply.setRequestId(rpcMessageReceived.getRequestId());
+            rpcMessageReply.setProcedureId(RETRIEVE_TRAM_LOCATION_PROCEDURE_ID);
+            rpcMessageReply.clearFields();
+
+            TramLocation location = rpcMessageReceived.getFieldCount() == 1
+                    ? tramLocation.get(rpcMessageReceived.getInt(0)) : null;
+            if (location == null) {
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+            } else {
+                rpcMessageReply.addField(location.getRouteId());
+                rpcMessageReply.addField(location.getStopId());
+                rpcMessageReply.addField(location.getTimestamp());
+                rpcMessageReply.setStatus(SUCCESS_STATUS);
+            }
+
+            messageResponse.marshal(rpcMessageReply);
+            mLocationMetrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, "retrieveTramLocation", rpcMessageReply, startNanos);
+        }
+        return messageResponse;
+    }
+
+    /*
+    * Return every tram last seen on a route as (route, tram, stop, timestamp) entries.
+    * */
+    @Override
+    public Message retrieveTramsOnRoute(Message message) throws RemoteException {
+        return retrieveTrams(message, RETRIEVE_TRAMS_ON_ROUTE_PROCEDURE_ID, mTramsOnRouteMetrics,
+                "retrieveTramsOnRoute");
+    }
+
+    /*
+    * Return every tram last seen at a stop as (route, tram, stop, timestamp) entries.
+    * */
+    @Override
+    public Message retrieveTramsAtStop(Message message) throws RemoteException {
+        return retrieveTrams(message, RETRIEVE_TRAMS_AT_STOP_PROCEDURE_ID, mTramsAtStopMetrics,
+                "retrieveTramsAtStop");
+    }
+
+    /*
+    * Answer a query on the route or stop index. The work is in proportion to the number of trams found, however
+    * many trams there are in all.
+    * */
+    private Message retrieveTrams(Message message, short procedureId, ProcedureMetrics metrics, String operation) {
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
+        Message messageResponse = new Message();
+
+        if (rpcMessageReceived.getMessageType() == REQUEST && rpcMessageReceived.getProcedureId() == procedureId) {
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(rpcMessageReceived.getTransactionId());
+            rpcMessageReply.setRPCId(rpcMessageReceived.getRPCId());
+            rpcMessageReply.setRequestId(rpcMessageReceived.getRequestId());
+            rpcMessageReply.setProcedureId(procedureId);
+            rpcMessageReply.clearFields();
+
+            if (rpcMessageReceived.getFieldCount() != 1) {
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+            } else {
+                int key = rpcMessageReceived.getInt(0);
+                boolean byRoute = procedureId == RETRIEVE_TRAMS_ON_ROUTE_PROCEDURE_ID;
+                Set<Integer> trams = byRoute ? tramLocation.getTramsOnRoute(key) : tramLocation.getTramsAtStop(key);
+                for (int tramId : trams) {
+                    // The tram may have moved on since the index was read.
+                    TramLocation location = tramLocation.get(tramId);
+                    if (location != null && (byRoute ? location.getRouteId() : location.getStopId()) == key) {
+                        rpcMessageReply.addField(location.getRouteId());
+                        rpcMessageReply.addField(tramId);
+                        rpcMessageReply.addField(location.getStopId());
+                        rpcMessageReply.addField(location.getTimestamp());
+                    }
+                }
+                rpcMessageReply.setStatus(SUCCESS_STATUS);
+            }
+
+            messageResponse.marshal(rpcMessageReply);
+            metrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, operation, rpcMessageReply, startNanos);
+        }
+        return messageResponse;
+    }
+
+    /*
+    * Compare a peer's digest nodes, all on one level, with ours. Below the leaves, reply with the next level and the
+    * (child, hash) pairs under every node that differs; at the leaves, reply with LEVELS and our locations in the
+    * differing leaves as (route, tram, stop, timestamp) entries.
+    * */
+    @Override
+    public Message gossipDigest(Message message) throws RemoteException {
+        long startNanos = System.nanoTime();
+        RPCMessage rpcMessageReceived = message.unMarshal(requestMessages.get());
+        Message messageResponse = new Message();
+
+        if (rpcMessageReceived.getMessageType() == REQUEST
+                && rpcMessageReceived.getProcedureId() == GOSSIP_DIGEST_PROCEDURE_ID) {
+            RPCMessage rpcMessageReply = MessageCodec.get().scratchMessage();
+            rpcMessageReply.setMessageType(REPLY);
+            rpcMessageReply.setTransactionId(rpcMessageReceived.getTransactionId());
+            rpcMessageReply.setRPCId(rpcMessageReceived.getRPCId());
+            rpcMessageReply.setRequestId(rpcMessageReceived.getRequestId());
+            rpcMessageReply.setProcedureId(GOSSIP_DIGEST_PROCEDURE_ID);
+            rpcMessageReply.clearFields();
+
+            if (!isDigestRequest(rpcMessageReceived)) {
+                rpcMessageReply.setStatus(FAILURE_STATUS);
+            } else {
+                LocationDigest digest = tramLocation.getDigest();
+                int level = rpcMessageReceived.getInt(0);
+                rpcMessageReply.addField(level == LocationDigest.LEAF_LEVEL ? LocationDigest.LEVELS : level + 1);
+                for (int i = 1; i < rpcMessageReceived.getFieldCount(); i += 2) {
+                    int node = rpcMessageReceived.getInt(i);
+                    if (digest.get(level, node) == rpcMessageReceived.getLong(i + 1)) {
+                        continue;
+                    }
+                    if (level < LocationDigest.LEAF_LEVEL) {
+                        int firstChild = LocationDigest.firstChild(node);
+                        for (int child = firstChild; child < firstChild + LocationDigest.FANOUT; child++) {
+                            rpcMessageReply.addField(child);
+                            rpcMessageReply.addField(digest.get(level + 1, child));
+                        }
+                    } else {
+                        for (int tramId : tramLocation.getTramsInLeaf(node)) {
+                            TramLocation location = tramLocation.get(tramId);
+                            if (location != null) {
+                                rpcMessageReply.addField(location.getRouteId());
+                                rpcMessageReply.addField(tramId);
+                                rpcMessageReply.addField(location.getStopId());
+                                rpcMessageReply.addField(location.getTimestamp());
+                            }
+                        }
+                    }
+                }
+                rpcMessageReply.setStatus(SUCCESS_STATUS);
+            }
+
+            messageResponse.marshal(rpcMessageReply);
+            mGossipMetrics.record(startNanos, rpcMessageReply.getStatus() != SUCCESS_STATUS);
+            Tracer.record(mName, "gossipDigest", rpcMessageReply, startNanos);
+        }
+        return messageResponse;
+    }
+
+    /*
+    * A digest request is (level, (node, hash)*) with every node on that level.
+    * */
+    private static boolean isDigestRequest(RPCMessage request) {
+        if (request.getFieldCount() % 2 != 1 || !LocationDigest.isNode(request.getLong(0), 0)) {
+            return false;
+        }
+        for (int i = 1; i < request.getFieldCount(); i += 2) {
+            if (!LocationDigest.isNode(request.getLong(0), request.getLong(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * Record a tram's new location. Updates stamped by the front end keep their timestamp so every replica orders
+    * them the same way, unstamped ones are stamped here.
+    * */
+    private void applyLocationUpdate(int routeId, int tramId, int stopId, long timestamp) {
+        if (timestamp == 0) {
+            timestamp = clock.now();
+        } else {
+            clock.update(timestamp);
+        }
+        tramLocation.put(tramId, new TramLocation(routeId, stopId, timestamp));
+    }
+
     /*
     * Main method to run a replica manager.
     * */
@@ -0,0 +1,384 @@
+package replicationManagerServer;
+
+import data.RPCMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tram network: every route and the stops along it, shared by the front end and the replicas.
+ * <p>
+ * The network is loaded from a csv file of (route_id, stop_sequence, stop_id) rows, the file named by
+ * ds2016.routes.file or the routes.csv bundled with the application. Routes are held sorted by id in flat int arrays,
+ * each route's stops being a slice of one array, with a RouteTable for next stop lookups, so even a city sized
+ * network is a handful of arrays and no per-stop objects.
+ * <p>
+ * A network is immutable. When loaded from ds2016.routes.file the file is checked for changes every
+ * ds2016.routes.reloadMs and a changed network replaces the current one, so callers should fetch current() once per
+ * request and use that network throughout. Each network has a version derived from its content.
+ * <p>
+ * A network can also be written to the fields of a message as (route count, (route id, stop count, stop*)*), which is
+ * how clients download it to look up next stops themselves.
+ *
+ * @author michael
+ */
+public final class RouteNetwork {
+
+    private static final Logger logger = LogManager.getLogger(RouteNetwork.class);
+
+    static final String ROUTES_FILE = System.getProperty("ds2016.routes.file");
+    static final long RELOAD_INTERVAL_MS = Long.getLong("ds2016.routes.reloadMs", 2000);
+
+    public static final int NO_ROUTE = -1;
+    private static final String BUNDLED_ROUTES = "/routes.csv";
+
+    private static volatile RouteNetwork current = loadInitial();
+
+    private final int[] mRouteIds;
+    private final int[] mRouteOffsets;
+    private final int[] mStops;
+    private final RouteTable mRouteTable;
+    private final long mVersion;
+
+    static {
+        if (ROUTES_FILE != null && RELOAD_INTERVAL_MS > 0) {
+            ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "route-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            File file = new File(ROUTES_FILE);
+            long[] lastModified = {file.lastModified()};
+            reloader.scheduleWithFixedDelay(() -> {
+                long modified = file.lastModified();
+                if (modified != lastModified[0]) {
+                    lastModified[0] = modified;
+                    reload(file);
+                }
+            }, RELOAD_INTERVAL_MS, RELOAD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+    * Routes sorted by id. Route i's stops are stops[routeOffsets[i]] up to stops[routeOffsets[i + 1]].
+    * */
+    RouteNetwork(int[] routeIds, int[] routeOffsets, int[] stops) {
+        mRouteIds = routeIds;
+        mRouteOffsets = routeOffsets;
+        mStops = stops;
+        mRouteTable = new RouteTable(routeIds, routeOffsets, stops);
+
+        long version = 0xcbf29ce484222325L;
+        for (int[] values : new int[][]{routeIds, routeOffsets, stops}) {
+            for (int value : values) {
+                version = (version ^ value) * 0x100000001b3L;
+            }
+        }
+        mVersion = version;
+    }
+
+    /*
+    * The network currently in use.
+    * */
+    public static RouteNetwork current() {
+        return current;
+    }
+
+    /*
+    * Parse a network from (route_id, stop_sequence, stop_id) csv rows. A header row, blank lines and lines starting
+    * with # are skipped.
+    * */
+    public static RouteNetwork load(InputStream in) throws IOException {
+        byte[] data = readFully(in);
+        int rows = 0;
+        int[] routes = new int[1024];
+        int[] sequences = new int[1024];
+        int[] stops = new int[1024];
+        int[] columns = new int[3];
+        boolean firstRow = true;
+        int line = 0;
+        int position = 0;
+        while (position < data.length) {
+            line++;
+            int end = position;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            int lineEnd = end > position && data[end - 1] == '\r' ? end - 1 : end;
+            boolean skip = lineEnd == position || data[position] == '#';
+            if (!skip && firstRow) {
+                firstRow = false;
+                // A header row.
+                skip = !isDigit(data[position]) && data[position] != '-';
+            }
+            if (!skip) {
+                if (rows == routes.length) {
+                    routes = Arrays.copyOf(routes, rows * 2);
+                    sequences = Arrays.copyOf(sequences, rows * 2);
+                    stops = Arrays.copyOf(stops, rows * 2);
+                }
+                int column = 0;
+                int start = position;
+                for (int i = position; i <= lineEnd && column < 3; i++) {
+                    if (i == lineEnd || data[i] == ',') {
+                        columns[column++] = parseInt(data, start, i, line);
+                        start = i + 1;
+                    }
+                }
+                if (column != 3) {
+                    throw new IOException("Line " + line + ": expected route_id,stop_sequence,stop_id");
+                }
+                routes[rows] = columns[0];
+                sequences[rows] = columns[1];
+                stops[rows] = columns[2];
+                rows++;
+            }
+            position = end + 1;
+        }
+        return build(routes, sequences, stops, rows);
+    }
+
+    public static RouteNetwork load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return load(in);
+        }
+    }
+
+    public long version() {
+        return mVersion;
+    }
+
+    public int routeCount() {
+        return mRouteIds.length;
+    }
+
+    /*
+    * The id of the route at an index, routes being indexed in id order.
+    * */
+    public int routeId(int routeIndex) {
+        return mRouteIds[routeIndex];
+    }
+
+    /*
+    * The index of a route, or NO_ROUTE when the network does not have it.
+    * */
+    public int routeIndex(int routeId) {
+        int index = Arrays.binarySearch(mRouteIds, routeId);
+        return index >= 0 ? index : NO_ROUTE;
+    }
+
+    public int stopCount(int routeIndex) {
+        return mRouteOffsets[routeIndex + 1] - mRouteOffsets[routeIndex];
+    }
+
+    public int stop(int routeIndex, int position) {
+        return mStops[mRouteOffsets[routeIndex] + position];
+    }
+
+    /*
+    * The stop a tram on a route starts at, or RouteTable.NO_STOP for an unknown route.
+    * */
+    public int firstStop(int routeId) {
+        int routeIndex = routeIndex(routeId);
+        return routeIndex == NO_ROUTE ? RouteTable.NO_STOP : stop(routeIndex, 0);
+    }
+
+    /*
+    * The stop after the first, which a new tram is treated as coming from so it sets off along the route.
+    * */
+    public int secondStop(int routeId) {
+        int routeIndex = routeIndex(routeId);
+        if (routeIndex == NO_ROUTE) {
+            return RouteTable.NO_STOP;
+        }
+        return stop(routeIndex, Math.min(1, stopCount(routeIndex) - 1));
+    }
+
+    public int nextStop(int routeId, int currentStop, int previousStop) {
+        return mRouteTable.nextStop(routeId, currentStop, previousStop);
+    }
+
+    /*
+    * Append the network to a message's fields.
+    * */
+    public void writeTo(RPCMessage message) {
+        message.addField(mRouteIds.length);
+        for (int route = 0; route < mRouteIds.length; route++) {
+            message.addField(mRouteIds[route]);
+            message.addField(stopCount(route));
+            for (int i = mRouteOffsets[route]; i < mRouteOffsets[route + 1]; i++) {
+                message.addField(mStops[i]);
+            }
+        }
+    }
+
+    /*
+    * Read a network written by writeTo, starting at a field of the message.
+    * */
+    public static RouteNetwork readFrom(RPCMessage message, int field) throws IOException {
+        int fieldCount = message.getFieldCount();
+        if (field >= fieldCount) {
+            throw new IOException("No route network in the message");
+        }
+        long routeCount = message.getLong(field++);
+        if (routeCount < 0 || routeCount > (fieldCount - field) / 2) {
+            throw new IOException("Route count " + routeCount + " does not fit the message");
+        }
+        int[] routeIds = new int[(int) routeCount];
+        int[] routeOffsets = new int[routeIds.length + 1];
+        int[] stops = new int[fieldCount - field];
+        int stopCount = 0;
+        for (int route = 0; route < routeIds.length; route++) {
+            if (fieldCount - field < 2) {
+                throw new IOException("The message ends before route " + route);
+            }
+            routeIds[route] = message.getInt(field++);
+            long routeStops = message.getLong(field++);
+            if (route > 0 && routeIds[route] <= routeIds[route - 1]) {
+                throw new IOException("Routes are not in id order at route " + routeIds[route]);
+            }
+            if (routeStops < 1 || routeStops > fieldCount - field) {
+                throw new IOException("Route " + routeIds[route] + " has " + routeStops + " stops");
+            }
+            for (int i = 0; i < routeStops; i++) {
+                stops[stopCount++] = message.getInt(field++);
+            }
+            routeOffsets[route + 1] = stopCount;
+        }
+        return new RouteNetwork(routeIds, routeOffsets, Arrays.copyOf(stops, stopCount));
+    }
+
+    private static RouteNetwork loadInitial() {
+        try {
+            if (ROUTES_FILE != null) {
+                return load(new File(ROUTES_FILE));
+            }
+            try (InputStream in = RouteNetwork.class.getResourceAsStream(BUNDLED_ROUTES)) {
+                if (in == null) {
+                    throw new IOException(BUNDLED_ROUTES + " is not on the classpath");
+                }
+                return load(in);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load the route network: " + e.getMessage(), e);
+        }
+    }
+
+    /*
+    * Replace the current network with the file's, keeping the current one if the file does not load.
+    * */
+    static void reload(File file) {
+        try {
+            RouteNetwork network = load(file);
+            if (network.mVersion != current.mVersion) {
+                current = network;
+                logger.warn("Reloaded route network from " + file + ": " + network.routeCount() + " routes, version "
+                        + Long.toHexString(network.mVersion));
+            }
+        } catch (IOException e) {
+            logger.warn("Keeping the current route network, " + file + " did not load: " + e.getMessage());
+        }
+    }
+
+    /*
+    * Group the rows by route in stop sequence order. Rows normally come that way already and are then taken as they
+    * are, otherwise they are sorted first.
+    * */
+    private static RouteNetwork build(int[] routes, int[] sequences, int[] stops, int rows) throws IOException {
+        boolean sorted = true;
+        for (int i = 1; i < rows && sorted; i++) {
+            sorted = routes[i - 1] < routes[i] || routes[i - 1] == routes[i] && sequences[i - 1] < sequences[i];
+        }
+        if (!sorted) {
+            Integer[] order = new Integer[rows];
+            for (int i = 0; i < rows; i++) {
+                order[i] = i;
+            }
+            int[] unsortedRoutes = routes;
+            int[] unsortedSequences = sequences;
+            Arrays.sort(order, Comparator.<Integer>comparingInt(i -> unsortedRoutes[i])
+                    .thenComparingInt(i -> unsortedSequences[i]));
+            int[] sortedRoutes = new int[rows];
+            int[] sortedSequences = new int[rows];
+            int[] sortedStops = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                sortedRoutes[i] = routes[order[i]];
+                sortedSequences[i] = sequences[order[i]];
+                sortedStops[i] = stops[order[i]];
+            }
+            routes = sortedRoutes;
+            sequences = sortedSequences;
+            stops = sortedStops;
+        }
+
+        int routeCount = 0;
+        for (int i = 0; i < rows; i++) {
+            if (i > 0 && routes[i] == routes[i - 1] && sequences[i] == sequences[i - 1]) {
+                throw new IOException("Route " + routes[i] + " has stop_sequence " + sequences[i] + " twice");
+            }
+            if (i == 0 || routes[i] != routes[i - 1]) {
+                routeCount++;
+            }
+        }
+        int[] routeIds = new int[routeCount];
+        int[] routeOffsets = new int[routeCount + 1];
+        int route = -1;
+        for (int i = 0; i < rows; i++) {
+            if (i == 0 || routes[i] != routes[i - 1]) {
+                routeIds[++route] = routes[i];
+                routeOffsets[route] = i;
+            }
+        }
+        routeOffsets[routeCount] = rows;
+        return new RouteNetwork(routeIds, routeOffsets, Arrays.copyOf(stops, rows));
+    }
+
+    private static int parseInt(byte[] data, int start, int end, int line) throws IOException {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        while (end > start && data[end - 1] == ' ') {
+            end--;
+        }
+        boolean negative = start < end && data[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new IOException("Line " + line + ": missing value");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            if (!isDigit(data[i])) {
+                throw new IOException("Line " + line + ": not a number");
+            }
+            value = value * 10 + (data[i] - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Line " + line + ": number out of range");
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package replicationManagerServer;
+
+/**
+ * Route topology compiled into an immutable open addressing table keyed by (route, stop).
+ * <p>
+ * Each entry holds the neighbouring stops on either side, so the next stop for any (route, current stop, previous
+ * stop) is found with one hash probe sequence and no boxing, however long the route or however many routes there are.
+ *
+ * @author michael
+ */
+public final class RouteTable {
+
+    public static final int NO_STOP = -1;
+
+    private final long[] mKeys;
+    private final int[] mStopBefore;
+    private final int[] mStopAfter;
+    private final boolean[] mUsed;
+    private final int mMask;
+
+    /*
+    * Compile the routes of a RouteNetwork: route i's stops are stops[routeOffsets[i]] up to stops[routeOffsets[i + 1]].
+    * */
+    RouteTable(int[] routeIds, int[] routeOffsets, int[] stops) {
+        int capacity = Integer.highestOneBit(Math.max(2, stops.length * 2) - 1) << 1;
+        mKeys = new long[capacity];
+        mStopBefore = new int[capacity];
+        mStopAfter = new int[capacity];
+        mUsed = new boolean[capacity];
+        mMask = capacity - 1;
+
+        for (int route = 0; route < routeIds.length; route++) {
+            int first = routeOffsets[route];
+            int last = routeOffsets[route + 1] - 1;
+            for (int i = first; i <= last; i++) {
+                long key = key(routeIds[route], stops[i]);
+                int slot = slot(key);
+                if (mUsed[slot]) {
+                    // A stop visited twice on a route keeps its first position.
+                    continue;
+                }
+                mUsed[slot] = true;
+                mKeys[slot] = key;
+                mStopBefore[slot] = i > first ? stops[i - 1] : NO_STOP;
+                mStopAfter[slot] = i < last ? stops[i + 1] : NO_STOP;
+            }
+        }
+    }
+
+    /*
+    * The stop after currentStop when arriving from previousStop. A tram at either end of the route turns around.
+    * Returns NO_STOP when the stop is not on the route.
+    * */
+    public int nextStop(int routeId, int currentStop, int previousStop) {
+        int slot = slot(key(routeId, currentStop));
+        if (!mUsed[slot]) {
+            return NO_STOP;
+        }
+        int stopBefore = mStopBefore[slot];
+        int stopAfter = mStopAfter[slot];
+        if (stopBefore == NO_STOP || stopAfter != NO_STOP && previousStop == stopBefore) {
+            // The tram is going right
+            return stopAfter;
+        }
+        // The tram is going left
+        return stopBefore;
+    }
+
+    /*
+    * The slot holding the key, or the empty slot where it would go.
+    * */
+    private int slot(long key) {
+        int slot = mix(key) & mMask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    private static long key(int routeId, int stopId) {
+        return (long) routeId << 32 | (stopId & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,84 @@
+package replicationManagerServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static replicationManagerServer.ReplicationManagerImpl.replicationManagers;
+
+/**
+ * Partitioning of the routes across groups of replication managers.
+ * <p>
+ * With ds2016.shards.replicas set, the replication managers are split, in order, into shards of that many replicas,
+ * any left over joining the last shard. Routes are spread over the shards by a consistent hash ring with
+ * ds2016.shards.virtualNodes points per shard, and each shard's replicas hold the locations of its routes only, so
+ * every shard added adds write capacity. Left unset, there is one shard of every replication manager.
+ *
+ * @author michael
+ */
+public final class Shards {
+
+    static final int REPLICAS_PER_SHARD = Integer.getInteger("ds2016.shards.replicas", 0);
+    static final int VIRTUAL_NODES = Integer.getInteger("ds2016.shards.virtualNodes", 64);
+
+    private static final Shards current = new Shards(new ArrayList<>(replicationManagers.keySet()),
+            REPLICAS_PER_SHARD);
+
+    private final List<List<String>> mReplicas = new ArrayList<>();
+    private final Map<String, Integer> mShardOfReplica = new HashMap<>();
+    private final ConsistentHashRing mRing;
+
+    Shards(List<String> rms, int replicasPerShard) {
+        if (replicasPerShard <= 0) {
+            replicasPerShard = rms.size();
+        }
+        int shards = Math.max(1, rms.size() / replicasPerShard);
+        List<String> names = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            int from = shard * replicasPerShard;
+            int to = shard == shards - 1 ? rms.size() : from + replicasPerShard;
+            List<String> replicas = Collections.unmodifiableList(new ArrayList<>(rms.subList(from, to)));
+            mReplicas.add(replicas);
+            for (String rm : replicas) {
+                mShardOfReplica.put(rm, shard);
+            }
+            names.add("shard" + (shard + 1));
+        }
+        mRing = new ConsistentHashRing(names, VIRTUAL_NODES);
+    }
+
+    /*
+    * The shards of this cluster.
+    * */
+    public static Shards current() {
+        return current;
+    }
+
+    public int count() {
+        return mReplicas.size();
+    }
+
+    /*
+    * The shard holding a route's tram locations.
+    * */
+    public int shardOfRoute(int routeId) {
+        return mReplicas.size() == 1 ? 0 : mRing.nodeIndex(routeId);
+    }
+
+    /*
+    * The shard a replication manager belongs to, or -1 for an unknown one.
+    * */
+    public int shardOf(String rm) {
+        Integer shard = mShardOfReplica.get(rm);
+        return shard == null ? -1 : shard;
+    }
+
+    /*
+    * The replication managers of a shard, in cluster order.
+    * */
+    public List<String> replicas(int shard) {
+        return mReplicas.get(shard);
+    }
+}
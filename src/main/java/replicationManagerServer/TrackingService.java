@@ -12,6 +12,13 @@ import java.rmi.RemoteException;
  */
 public interface TrackingService extends Remote {
 
+    boolean heartbeat() throws RemoteException;
+
     Message retrieveNextStop(Message message) throws RemoteException;
     Message updateTramLocation(Message message) throws RemoteException;
+    Message updateTramLocations(Message message) throws RemoteException;
+    Message retrieveTramLocation(Message message) throws RemoteException;
+    Message retrieveTramsOnRoute(Message message) throws RemoteException;
+    Message retrieveTramsAtStop(Message message) throws RemoteException;
+    Message gossipDigest(Message message) throws RemoteException;
 }
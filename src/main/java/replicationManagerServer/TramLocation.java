@@ -0,0 +1,64 @@
+package replicationManagerServer;
+
+/**
+ * Immutable record of where a tram was last seen.
+ *
+ * @author michael
+ */
+public final class TramLocation {
+
+    private final int mRouteId;
+    private final int mStopId;
+    private final long mTimestamp;
+
+    public TramLocation(int routeId, int stopId, long timestamp) {
+        mRouteId = routeId;
+        mStopId = stopId;
+        mTimestamp = timestamp;
+    }
+
+    public int getRouteId() {
+        return mRouteId;
+    }
+
+    public int getStopId() {
+        return mStopId;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /*
+    * Last writer wins. Two locations stamped at the same time by different front ends are ordered by route and then
+    * stop, so every replica keeps the same one whatever order they arrive in. A location does not supersede itself.
+    * */
+    public boolean supersedes(TramLocation other) {
+        if (other == null || mTimestamp != other.mTimestamp) {
+            return other == null || mTimestamp > other.mTimestamp;
+        }
+        if (mRouteId != other.mRouteId) {
+            return mRouteId > other.mRouteId;
+        }
+        return mStopId > other.mStopId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TramLocation)) {
+            return false;
+        }
+        TramLocation other = (TramLocation) o;
+        return mRouteId == other.mRouteId && mStopId == other.mStopId && mTimestamp == other.mTimestamp;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * mRouteId + mStopId) + Long.hashCode(mTimestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "route " + mRouteId + " stop " + mStopId + " @" + mTimestamp;
+    }
+}
@@ -0,0 +1,228 @@
+package tracing;
+
+import data.Message;
+import data.RPCMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured per-RPC tracing.
+ * <p>
+ * Each traced RPC becomes one event holding its header, status, duration and, at FIELDS level, its first few fields.
+ * Events are copied into preallocated slots of a lock-free ring buffer and a background thread drains them to a
+ * JSON-lines file in ds2016.trace.dir, one file per process. When the buffer is full events are dropped rather than
+ * slowing the caller down.
+ * <p>
+ * ds2016.trace.level picks OFF (the default), RPC or FIELDS and ds2016.trace.sampleRate the fraction of RPCs traced.
+ * Sampling is decided by the RPC id, so an RPC that is traced on the client is traced on the front end and the
+ * replicas too. With tracing off, or an RPC not sampled, nothing is copied or formatted.
+ *
+ * @author michael
+ */
+public final class Tracer {
+
+    private static final Logger logger = LogManager.getLogger(Tracer.class);
+
+    public enum Level {OFF, RPC, FIELDS}
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("ds2016.trace.level", Level.OFF.name()).toUpperCase());
+    static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("ds2016.trace.sampleRate", "1.0"));
+    static final int BUFFER_SIZE =
+            Integer.highestOneBit(Math.max(2, Integer.getInteger("ds2016.trace.bufferSize", 65536)));
+    static final String TRACE_DIR = System.getProperty("ds2016.trace.dir", "trace");
+
+    private static final int MAX_FIELDS = 4;
+    private static final long SAMPLE_THRESHOLD = (long) (Math.min(1.0, Math.max(0.0, SAMPLE_RATE)) * (1L << 53));
+    private static final ThreadLocal<RPCMessage> replyMessages = ThreadLocal.withInitial(RPCMessage::new);
+
+    private static final Slot[] slots = new Slot[LEVEL == Level.OFF ? 0 : BUFFER_SIZE];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong drained = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        if (LEVEL != Level.OFF) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot(i - slots.length);
+            }
+            Thread drainer = new Thread(Tracer::drainLoop, "trace-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    private Tracer() {}
+
+    /*
+    * Start time of an RPC, to pass to record. Free when tracing is off.
+    * */
+    public static long start() {
+        return LEVEL == Level.OFF ? 0 : System.nanoTime();
+    }
+
+    /*
+    * Whether an RPC with this id is traced.
+    * */
+    public static boolean isTraced(long RPCId) {
+        return LEVEL != Level.OFF && (mix(RPCId) >>> 11) < SAMPLE_THRESHOLD;
+    }
+
+    /*
+    * Record an RPC from its reply, which carries the request's header and the outcome.
+    * */
+    public static void record(String node, String operation, RPCMessage reply, long startNanos) {
+        if (LEVEL == Level.OFF || reply == null || !isTraced(reply.getRPCId())) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - drained.get() >= slots.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & (slots.length - 1))];
+        slot.mTimeMillis = System.currentTimeMillis();
+        slot.mNode = node;
+        slot.mOperation = operation;
+        slot.mMessageType = reply.getMessageType();
+        slot.mTransactionId = reply.getTransactionId();
+        slot.mRPCId = reply.getRPCId();
+        slot.mRequestId = reply.getRequestId();
+        slot.mProcedureId = reply.getProcedureId();
+        slot.mStatus = reply.getStatus();
+        slot.mDurationNanos = durationNanos;
+        slot.mFieldCount = 0;
+        if (LEVEL == Level.FIELDS) {
+            int fieldCount = reply.getFieldCount();
+            slot.mTotalFields = fieldCount;
+            for (int i = 0; i < fieldCount && i < MAX_FIELDS; i++) {
+                slot.mFields[slot.mFieldCount++] = reply.getLong(i);
+            }
+        }
+        slot.mSequence = sequence;
+    }
+
+    /*
+    * Record an RPC from its marshalled reply. The reply is only decoded when tracing is on.
+    * */
+    public static void record(String node, String operation, Message reply, long startNanos) {
+        if (LEVEL == Level.OFF || reply == null || reply.isEmpty()) {
+            return;
+        }
+        record(node, operation, reply.unMarshal(replyMessages.get()), startNanos);
+    }
+
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    private static void drainLoop() {
+        File file = new File(TRACE_DIR, "trace-" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0]
+                + ".jsonl");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+        } catch (IOException e) {
+            logger.warn("Could not create trace directory " + TRACE_DIR + ": " + e);
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8))) {
+            logger.info("Tracing " + LEVEL + " at sample rate " + SAMPLE_RATE + " to " + file);
+            StringBuilder line = new StringBuilder(256);
+            long reportedDrops = 0;
+            while (true) {
+                long sequence = drained.get();
+                Slot slot = slots[(int) (sequence & (slots.length - 1))];
+                if (slot.mSequence != sequence) {
+                    writer.flush();
+                    long drops = dropped.get();
+                    if (drops != reportedDrops) {
+                        logger.warn("Trace buffer full, " + (drops - reportedDrops) + " events dropped");
+                        reportedDrops = drops;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                line.setLength(0);
+                slot.appendJson(line);
+                // The slot may be reused as soon as drained moves past it.
+                drained.lazySet(sequence + 1);
+                writer.append(line).append('\n');
+            }
+        } catch (IOException e) {
+            logger.warn("Tracing stopped: " + e);
+        }
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /*
+    * One event. Written by the producer that claimed it and published by setting its sequence last.
+    * */
+    private static class Slot {
+        private volatile long mSequence;
+        private long mTimeMillis;
+        private String mNode;
+        private String mOperation;
+        private RPCMessage.MessageType mMessageType;
+        private long mTransactionId;
+        private long mRPCId;
+        private long mRequestId;
+        private short mProcedureId;
+        private short mStatus;
+        private long mDurationNanos;
+        private int mTotalFields;
+        private int mFieldCount;
+        private final long[] mFields = new long[MAX_FIELDS];
+
+        Slot(long sequence) {
+            mSequence = sequence;
+        }
+
+        void appendJson(StringBuilder line) {
+            line.append("{\"time\":").append(mTimeMillis)
+                    .append(",\"node\":\"").append(mNode)
+                    .append("\",\"op\":\"").append(mOperation)
+                    .append("\",\"type\":\"").append(mMessageType)
+                    .append("\",\"transactionId\":").append(mTransactionId)
+                    .append(",\"RPCId\":").append(mRPCId)
+                    .append(",\"requestId\":").append(mRequestId)
+                    .append(",\"procedureId\":").append(mProcedureId)
+                    .append(",\"status\":").append(mStatus)
+                    .append(",\"micros\":").append(TimeUnit.NANOSECONDS.toMicros(mDurationNanos));
+            if (LEVEL == Level.FIELDS) {
+                line.append(",\"fieldCount\":").append(mTotalFields).append(",\"fields\":[");
+                for (int i = 0; i < mFieldCount; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(mFields[i]);
+                }
+                line.append(']');
+            }
+            line.append('}');
+        }
+    }
+}
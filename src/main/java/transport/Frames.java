@@ -0,0 +1,92 @@
+package transport;
+
+import data.Message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Frame layout shared by the NIO client and server.
+ * <p>
+ * Every frame is [int length][long tag][byte code][payload], where length counts everything after itself. Requests
+ * carry the method id as their code and replies carry a reply code. The tag correlates a reply with its request so
+ * many requests can be outstanding on one connection. It is assigned per connection rather than taken from the
+ * message's RPCId, because a client retry reuses its RPCId.
+ *
+ * @author michael
+ */
+final class Frames {
+
+    static final int LENGTH_BYTES = 4;
+    static final int HEADER_LENGTH = 8 + 1;
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    static final byte REPLY_OK = 0;
+    static final byte REPLY_NULL = 1;
+    static final byte REPLY_ERROR = 2;
+
+    private Frames() {}
+
+    static ByteBuffer frame(long tag, byte code, byte[] payload) {
+        int payloadLength = payload == null ? 0 : payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_BYTES + HEADER_LENGTH + payloadLength);
+        frame.putInt(HEADER_LENGTH + payloadLength);
+        frame.putLong(tag);
+        frame.put(code);
+        if (payload != null) {
+            frame.put(payload);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /*
+    * Payload helpers for the adapters.
+    * */
+    static byte[] ofInt(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    static byte[] ofLong(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    static byte[] ofBoolean(boolean value) {
+        return new byte[]{(byte) (value ? 1 : 0)};
+    }
+
+    /*
+    * A null message has no payload at all, an empty message has a zero length payload.
+    * */
+    static byte[] ofMessage(Message message) {
+        if (message == null) {
+            return null;
+        }
+        if (message.isEmpty()) {
+            return new byte[0];
+        }
+        return Arrays.copyOf(message.getData(), message.getLength());
+    }
+
+    static Message toMessage(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        if (payload.length == 0) {
+            return new Message();
+        }
+        return new Message(payload, payload.length);
+    }
+
+    /*
+    * Request side. An empty message cannot be unmarshalled, so it arrives as null just like a null argument.
+    * */
+    static Message toMessage(ByteBuffer payload) {
+        if (!payload.hasRemaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return toMessage(bytes);
+    }
+}
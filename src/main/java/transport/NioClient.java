@@ -0,0 +1,186 @@
+package transport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One multiplexed connection to an NioServer.
+ * <p>
+ * Any number of threads can have calls outstanding at once. Requests are queued for a single writer thread, and a
+ * single reader thread completes the waiting call that matches each reply's tag. Callers never touch the channel
+ * themselves, because interrupting a thread in a channel operation closes the channel, and calls to replicas are
+ * interrupted whenever they are no longer needed. When the connection fails every outstanding and later call throws
+ * a RemoteException, and the owner is expected to open a new client.
+ *
+ * @author michael
+ */
+public class NioClient implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(NioClient.class);
+
+    private final SocketChannel mChannel;
+    private final Map<Long, CompletableFuture<byte[]>> mPending = new ConcurrentHashMap<>();
+    private final AtomicLong mTags = new AtomicLong();
+    private final BlockingQueue<ByteBuffer> mOutgoing = new LinkedBlockingQueue<>();
+    private final Thread mWriter;
+    private volatile boolean mClosed = false;
+
+    public NioClient(String host, int port) throws IOException {
+        mChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        mChannel.socket().setTcpNoDelay(true);
+
+        Thread reader = new Thread(this::readLoop, "nio-client-" + port);
+        reader.setDaemon(true);
+        reader.start();
+        mWriter = new Thread(this::writeLoop, "nio-client-writer-" + port);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /*
+    * Send a request and wait for its reply payload, which is null for a null reply.
+    * */
+    public byte[] call(byte method, byte[] payload) throws RemoteException {
+        if (mClosed) {
+            throw new ConnectException("Connection closed");
+        }
+        long tag = mTags.incrementAndGet();
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        mPending.put(tag, reply);
+
+        mOutgoing.add(Frames.frame(tag, method, payload));
+        // The connection may have failed between registering and queueing.
+        if (mClosed) {
+            failPending();
+        }
+
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            mPending.remove(tag);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for reply");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Call failed", e.getCause());
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mOutgoing.clear();
+        mWriter.interrupt();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        failPending();
+    }
+
+    private void failPending() {
+        for (Long tag : mPending.keySet()) {
+            CompletableFuture<byte[]> reply = mPending.remove(tag);
+            if (reply != null) {
+                reply.completeExceptionally(new ConnectException("Connection closed"));
+            }
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Frames.LENGTH_BYTES);
+        try {
+            while (!mClosed) {
+                lengthBuffer.clear();
+                readFully(lengthBuffer);
+                int length = lengthBuffer.getInt(0);
+                if (length < Frames.HEADER_LENGTH || length > Frames.MAX_FRAME_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                readFully(frame);
+                frame.flip();
+
+                long tag = frame.getLong();
+                byte code = frame.get();
+                byte[] payload = new byte[frame.remaining()];
+                frame.get(payload);
+
+                CompletableFuture<byte[]> reply = mPending.remove(tag);
+                if (reply == null) {
+                    continue;
+                }
+                switch (code) {
+                    case Frames.REPLY_OK:
+                        reply.complete(payload);
+                        break;
+                    case Frames.REPLY_NULL:
+                        reply.complete(null);
+                        break;
+                    default:
+                        reply.completeExceptionally(new RemoteException(new String(payload, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                logger.warn("Connection lost: " + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /*
+    * Write queued requests until the connection closes. Only this thread writes to the channel.
+    * */
+    private void writeLoop() {
+        try {
+            while (!mClosed) {
+                ByteBuffer frame = mOutgoing.take();
+                while (frame.hasRemaining()) {
+                    mChannel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                logger.warn("Connection lost: " + e);
+            }
+        } catch (InterruptedException e) {
+            // Closed while waiting for a request.
+        } finally {
+            close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
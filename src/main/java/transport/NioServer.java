@@ -0,0 +1,215 @@
+package transport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selector based server for the framed protocol.
+ * <p>
+ * One selector thread accepts connections, reads frames and writes replies. Complete requests are handed to a fixed
+ * pool of workers, so the number of threads does not grow with the number of connections or outstanding requests. A
+ * handler can answer asynchronously, freeing its worker while it waits, and the reply is written whenever it
+ * completes.
+ *
+ * @author michael
+ */
+public class NioServer {
+
+    private static final Logger logger = LogManager.getLogger(NioServer.class);
+
+    public static final int WORKER_THREADS = Integer.getInteger("ds2016.nio.workers",
+            Runtime.getRuntime().availableProcessors());
+
+    private final int mPort;
+    private final RequestHandler mHandler;
+    private final ExecutorService mWorkers;
+    private final Queue<Connection> mWritable = new ConcurrentLinkedQueue<>();
+    private Selector mSelector;
+
+    public NioServer(int port, RequestHandler handler) {
+        this(port, handler, WORKER_THREADS);
+    }
+
+    public NioServer(int port, RequestHandler handler, int workerThreads) {
+        mPort = port;
+        mHandler = handler;
+        mWorkers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "nio-worker-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() throws IOException {
+        mSelector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(mPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        Thread selectorThread = new Thread(this::selectLoop, "nio-selector-" + mPort);
+        selectorThread.start();
+        logger.info("NIO server listening on port " + mPort);
+    }
+
+    private void selectLoop() {
+        while (true) {
+            try {
+                mSelector.select();
+
+                Connection connection;
+                while ((connection = mWritable.poll()) != null) {
+                    if (connection.mKey.isValid()) {
+                        connection.mKey.interestOps(connection.mKey.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Selector failed: " + e);
+                return;
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /*
+    * Per connection read buffer and queue of replies waiting to be written.
+    * */
+    private class Connection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final Queue<ByteBuffer> mReplies = new ConcurrentLinkedQueue<>();
+        private ByteBuffer mReadBuffer = ByteBuffer.allocate(4096);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        void read() throws IOException {
+            if (mChannel.read(mReadBuffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+            mReadBuffer.flip();
+            while (mReadBuffer.remaining() >= Frames.LENGTH_BYTES) {
+                int length = mReadBuffer.getInt(mReadBuffer.position());
+                if (length < Frames.HEADER_LENGTH || length > Frames.MAX_FRAME_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (mReadBuffer.remaining() < Frames.LENGTH_BYTES + length) {
+                    if (mReadBuffer.capacity() < Frames.LENGTH_BYTES + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(Frames.LENGTH_BYTES + length);
+                        larger.put(mReadBuffer);
+                        larger.flip();
+                        mReadBuffer = larger;
+                    }
+                    break;
+                }
+                mReadBuffer.getInt();
+                long tag = mReadBuffer.getLong();
+                byte method = mReadBuffer.get();
+                byte[] payload = new byte[length - Frames.HEADER_LENGTH];
+                mReadBuffer.get(payload);
+                mWorkers.execute(() -> dispatch(tag, method, payload));
+            }
+            mReadBuffer.compact();
+        }
+
+        void write() throws IOException {
+            ByteBuffer reply;
+            while ((reply = mReplies.peek()) != null) {
+                mChannel.write(reply);
+                if (reply.hasRemaining()) {
+                    return;
+                }
+                mReplies.poll();
+            }
+            mKey.interestOps(SelectionKey.OP_READ);
+            // A reply queued while interest was being cleared must not be stranded.
+            if (!mReplies.isEmpty()) {
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void dispatch(long tag, byte method, byte[] payload) {
+            CompletableFuture<byte[]> replyPayload;
+            try {
+                replyPayload = mHandler.handleAsync(method, ByteBuffer.wrap(payload));
+            } catch (RuntimeException e) {
+                replyPayload = new CompletableFuture<>();
+                replyPayload.completeExceptionally(e);
+            }
+            replyPayload.whenComplete((result, error) -> reply(tag, result, error));
+        }
+
+        /*
+        * Queue a reply for the selector thread to write. Called from whichever thread completed the request.
+        * */
+        private void reply(long tag, byte[] replyPayload, Throwable error) {
+            ByteBuffer reply;
+            if (error != null) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                String message = String.valueOf(error.getMessage());
+                reply = Frames.frame(tag, Frames.REPLY_ERROR, message.getBytes(StandardCharsets.UTF_8));
+            } else if (replyPayload == null) {
+                reply = Frames.frame(tag, Frames.REPLY_NULL, null);
+            } else {
+                reply = Frames.frame(tag, Frames.REPLY_OK, replyPayload);
+            }
+            mReplies.add(reply);
+            mWritable.add(this);
+            mSelector.wakeup();
+        }
+    }
+}
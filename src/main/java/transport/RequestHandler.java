@@ -0,0 +1,31 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server side dispatch of one framed request.
+ *
+ * @author michael
+ */
+public interface RequestHandler {
+
+    /*
+    * Handle a request for the given method. Returns the reply payload, or null for a null reply.
+    * */
+    byte[] handle(byte method, ByteBuffer payload) throws Exception;
+
+    /*
+    * Handle a request without holding the worker thread until the reply is ready. The future completes with the reply
+    * payload, or null for a null reply. By default the request is handled on the calling thread.
+    * */
+    default CompletableFuture<byte[]> handleAsync(byte method, ByteBuffer payload) {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        try {
+            reply.complete(handle(method, payload));
+        } catch (Exception e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+}
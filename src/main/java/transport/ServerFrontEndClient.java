@@ -0,0 +1,137 @@
+package transport;
+
+import client.ClientCallback;
+import data.Message;
+import frontEndServer.ServerFrontEnd;
+import frontEndServer.SubscriptionTopic;
+import replicationManagerServer.TrackingService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * ServerFrontEnd stub that calls the front end over the NIO transport.
+ *
+ * @author michael
+ */
+public class ServerFrontEndClient implements ServerFrontEnd {
+
+    private final NioClient mClient;
+
+    public ServerFrontEndClient(String host, int port) throws IOException {
+        mClient = new NioClient(host, port);
+    }
+
+    public void close() {
+        mClient.close();
+    }
+
+    /*
+    * Remote references to the tracking services only exist over RMI.
+    * */
+    @Override
+    public List<TrackingService> listTramService() throws RemoteException {
+        throw new RemoteException("listTramService is not available over the NIO transport");
+    }
+
+    @Override
+    public void printTrackingServiceAvailability() throws RemoteException {
+        mClient.call(ServerFrontEndDispatcher.PRINT_TRACKING_SERVICE_AVAILABILITY, null);
+    }
+
+    @Override
+    public int getTramId() throws RemoteException {
+        return callForInt(ServerFrontEndDispatcher.GET_TRAM_ID, null);
+    }
+
+    @Override
+    public int getRoute(int tramId) throws RemoteException {
+        return callForInt(ServerFrontEndDispatcher.GET_ROUTE, Frames.ofInt(tramId));
+    }
+
+    @Override
+    public int getFirstStop(int route) throws RemoteException {
+        return callForInt(ServerFrontEndDispatcher.GET_FIRST_STOP, Frames.ofInt(route));
+    }
+
+    @Override
+    public int getSecondStop(int route) throws RemoteException {
+        return callForInt(ServerFrontEndDispatcher.GET_SECOND_STOP, Frames.ofInt(route));
+    }
+
+    @Override
+    public long getRPCId() throws RemoteException {
+        return ByteBuffer.wrap(mClient.call(ServerFrontEndDispatcher.GET_RPC_ID, null)).getLong();
+    }
+
+    @Override
+    public void releaseTramId(int tramId) throws RemoteException {
+        mClient.call(ServerFrontEndDispatcher.RELEASE_TRAM_ID, Frames.ofInt(tramId));
+    }
+
+    @Override
+    public long leaseRPCIdBlock(int size) throws RemoteException {
+        return ByteBuffer.wrap(mClient.call(ServerFrontEndDispatcher.LEASE_RPC_ID_BLOCK, Frames.ofInt(size)))
+                .getLong();
+    }
+
+    @Override
+    public Message retrieveNextStop(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.RETRIEVE_NEXT_STOP, Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message updateTramLocation(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.UPDATE_TRAM_LOCATION,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message updateTramLocations(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.UPDATE_TRAM_LOCATIONS,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramLocation(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.RETRIEVE_TRAM_LOCATION,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramsOnRoute(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.RETRIEVE_TRAMS_ON_ROUTE,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramsAtStop(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.RETRIEVE_TRAMS_AT_STOP,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveRouteNetwork(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(ServerFrontEndDispatcher.RETRIEVE_ROUTE_NETWORK,
+                Frames.ofMessage(message)));
+    }
+
+    /*
+    * Events are pushed through an RMI callback, which the NIO transport has no equivalent of.
+    * */
+    @Override
+    public long subscribe(ClientCallback callback, SubscriptionTopic topic, int id) throws RemoteException {
+        throw new RemoteException("Subscriptions need the RMI transport");
+    }
+
+    @Override
+    public void unsubscribe(long subscriptionId) throws RemoteException {
+        throw new RemoteException("Subscriptions need the RMI transport");
+    }
+
+    private int callForInt(byte method, byte[] payload) throws RemoteException {
+        return ByteBuffer.wrap(mClient.call(method, payload)).getInt();
+    }
+}
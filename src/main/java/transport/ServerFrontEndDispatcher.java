@@ -0,0 +1,88 @@
+package transport;
+
+import frontEndServer.ServerFrontEndImpl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Serves the ServerFrontEnd over the NIO transport.
+ * <p>
+ * Location updates are answered asynchronously, when their batch is acknowledged, so waiting for the batch window does
+ * not hold a worker and a batch can take in updates from any number of trams. The other requests still hold a worker
+ * while the replicas are asked.
+ *
+ * @author michael
+ */
+public class ServerFrontEndDispatcher implements RequestHandler {
+
+    static final byte PRINT_TRACKING_SERVICE_AVAILABILITY = 1;
+    static final byte GET_TRAM_ID = 2;
+    static final byte GET_ROUTE = 3;
+    static final byte GET_FIRST_STOP = 4;
+    static final byte GET_SECOND_STOP = 5;
+    static final byte GET_RPC_ID = 6;
+    static final byte RETRIEVE_NEXT_STOP = 7;
+    static final byte UPDATE_TRAM_LOCATION = 8;
+    static final byte UPDATE_TRAM_LOCATIONS = 9;
+    static final byte RETRIEVE_TRAM_LOCATION = 10;
+    static final byte LEASE_RPC_ID_BLOCK = 11;
+    static final byte RELEASE_TRAM_ID = 12;
+    static final byte RETRIEVE_TRAMS_ON_ROUTE = 13;
+    static final byte RETRIEVE_TRAMS_AT_STOP = 14;
+    static final byte RETRIEVE_ROUTE_NETWORK = 15;
+
+    private final ServerFrontEndImpl mFrontEnd;
+
+    public ServerFrontEndDispatcher(ServerFrontEndImpl frontEnd) {
+        mFrontEnd = frontEnd;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> handleAsync(byte method, ByteBuffer payload) {
+        if (method == UPDATE_TRAM_LOCATION) {
+            return mFrontEnd.updateTramLocationAsync(Frames.toMessage(payload)).thenApply(Frames::ofMessage);
+        }
+        return RequestHandler.super.handleAsync(method, payload);
+    }
+
+    @Override
+    public byte[] handle(byte method, ByteBuffer payload) throws Exception {
+        switch (method) {
+            case PRINT_TRACKING_SERVICE_AVAILABILITY:
+                mFrontEnd.printTrackingServiceAvailability();
+                return new byte[0];
+            case GET_TRAM_ID:
+                return Frames.ofInt(mFrontEnd.getTramId());
+            case GET_ROUTE:
+                return Frames.ofInt(mFrontEnd.getRoute(payload.getInt()));
+            case GET_FIRST_STOP:
+                return Frames.ofInt(mFrontEnd.getFirstStop(payload.getInt()));
+            case GET_SECOND_STOP:
+                return Frames.ofInt(mFrontEnd.getSecondStop(payload.getInt()));
+            case GET_RPC_ID:
+                return Frames.ofLong(mFrontEnd.getRPCId());
+            case RETRIEVE_NEXT_STOP:
+                return Frames.ofMessage(mFrontEnd.retrieveNextStop(Frames.toMessage(payload)));
+            case UPDATE_TRAM_LOCATION:
+                return Frames.ofMessage(mFrontEnd.updateTramLocation(Frames.toMessage(payload)));
+            case UPDATE_TRAM_LOCATIONS:
+                return Frames.ofMessage(mFrontEnd.updateTramLocations(Frames.toMessage(payload)));
+            case RETRIEVE_TRAM_LOCATION:
+                return Frames.ofMessage(mFrontEnd.retrieveTramLocation(Frames.toMessage(payload)));
+            case LEASE_RPC_ID_BLOCK:
+                return Frames.ofLong(mFrontEnd.leaseRPCIdBlock(payload.getInt()));
+            case RELEASE_TRAM_ID:
+                mFrontEnd.releaseTramId(payload.getInt());
+                return new byte[0];
+            case RETRIEVE_TRAMS_ON_ROUTE:
+                return Frames.ofMessage(mFrontEnd.retrieveTramsOnRoute(Frames.toMessage(payload)));
+            case RETRIEVE_TRAMS_AT_STOP:
+                return Frames.ofMessage(mFrontEnd.retrieveTramsAtStop(Frames.toMessage(payload)));
+            case RETRIEVE_ROUTE_NETWORK:
+                return Frames.ofMessage(mFrontEnd.retrieveRouteNetwork(Frames.toMessage(payload)));
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+}
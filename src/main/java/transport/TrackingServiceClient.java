@@ -0,0 +1,71 @@
+package transport;
+
+import data.Message;
+import replicationManagerServer.TrackingService;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+/**
+ * TrackingService stub that calls a replication manager over the NIO transport.
+ *
+ * @author michael
+ */
+public class TrackingServiceClient implements TrackingService {
+
+    private final NioClient mClient;
+
+    public TrackingServiceClient(String host, int port) throws IOException {
+        mClient = new NioClient(host, port);
+    }
+
+    public void close() {
+        mClient.close();
+    }
+
+    @Override
+    public boolean heartbeat() throws RemoteException {
+        byte[] reply = mClient.call(TrackingServiceDispatcher.HEARTBEAT, null);
+        return reply != null && reply.length == 1 && reply[0] == 1;
+    }
+
+    @Override
+    public Message retrieveNextStop(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.RETRIEVE_NEXT_STOP, Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message updateTramLocation(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.UPDATE_TRAM_LOCATION,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message updateTramLocations(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.UPDATE_TRAM_LOCATIONS,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramLocation(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.RETRIEVE_TRAM_LOCATION,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramsOnRoute(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.RETRIEVE_TRAMS_ON_ROUTE,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message retrieveTramsAtStop(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.RETRIEVE_TRAMS_AT_STOP,
+                Frames.ofMessage(message)));
+    }
+
+    @Override
+    public Message gossipDigest(Message message) throws RemoteException {
+        return Frames.toMessage(mClient.call(TrackingServiceDispatcher.GOSSIP_DIGEST, Frames.ofMessage(message)));
+    }
+}
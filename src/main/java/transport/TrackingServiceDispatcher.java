@@ -0,0 +1,52 @@
+package transport;
+
+import replicationManagerServer.TrackingService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serves a TrackingService over the NIO transport.
+ *
+ * @author michael
+ */
+public class TrackingServiceDispatcher implements RequestHandler {
+
+    static final byte HEARTBEAT = 1;
+    static final byte RETRIEVE_NEXT_STOP = 2;
+    static final byte UPDATE_TRAM_LOCATION = 3;
+    static final byte UPDATE_TRAM_LOCATIONS = 4;
+    static final byte RETRIEVE_TRAM_LOCATION = 5;
+    static final byte GOSSIP_DIGEST = 6;
+    static final byte RETRIEVE_TRAMS_ON_ROUTE = 7;
+    static final byte RETRIEVE_TRAMS_AT_STOP = 8;
+
+    private final TrackingService mTrackingService;
+
+    public TrackingServiceDispatcher(TrackingService trackingService) {
+        mTrackingService = trackingService;
+    }
+
+    @Override
+    public byte[] handle(byte method, ByteBuffer payload) throws Exception {
+        switch (method) {
+            case HEARTBEAT:
+                return Frames.ofBoolean(mTrackingService.heartbeat());
+            case RETRIEVE_NEXT_STOP:
+                return Frames.ofMessage(mTrackingService.retrieveNextStop(Frames.toMessage(payload)));
+            case UPDATE_TRAM_LOCATION:
+                return Frames.ofMessage(mTrackingService.updateTramLocation(Frames.toMessage(payload)));
+            case UPDATE_TRAM_LOCATIONS:
+                return Frames.ofMessage(mTrackingService.updateTramLocations(Frames.toMessage(payload)));
+            case RETRIEVE_TRAM_LOCATION:
+                return Frames.ofMessage(mTrackingService.retrieveTramLocation(Frames.toMessage(payload)));
+            case GOSSIP_DIGEST:
+                return Frames.ofMessage(mTrackingService.gossipDigest(Frames.toMessage(payload)));
+            case RETRIEVE_TRAMS_ON_ROUTE:
+                return Frames.ofMessage(mTrackingService.retrieveTramsOnRoute(Frames.toMessage(payload)));
+            case RETRIEVE_TRAMS_AT_STOP:
+                return Frames.ofMessage(mTrackingService.retrieveTramsAtStop(Frames.toMessage(payload)));
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+}
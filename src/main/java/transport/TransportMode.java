@@ -0,0 +1,23 @@
+package transport;
+
+/**
+ * How the front end, replication managers and trams talk to each other.
+ * <p>
+ * Selected with the ds2016.transport system property, RMI by default. The NIO transport listens on the RMI port plus
+ * NIO_PORT_OFFSET.
+ *
+ * @author michael
+ */
+public enum TransportMode {
+    RMI, NIO;
+
+    public static final int NIO_PORT_OFFSET = 1000;
+
+    public static TransportMode current() {
+        return valueOf(System.getProperty("ds2016.transport", RMI.name()).toUpperCase());
+    }
+
+    public static int nioPort(int rmiPort) {
+        return rmiPort + NIO_PORT_OFFSET;
+    }
+}
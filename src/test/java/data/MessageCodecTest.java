@@ -0,0 +1,154 @@
+package data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary wire format: zig-zag varint fields, the CRC32 trailer and the fallback to the csv encoding.
+ *
+ * @author michael
+ */
+public class MessageCodecTest {
+
+    @Test
+    public void roundTripsHeaderAndFields() {
+        RPCMessage message = request(1, 96, 3, 2);
+        message.setTransactionId(-7);
+        message.setRPCId(Long.MAX_VALUE);
+        message.setRequestId(Long.MIN_VALUE);
+        message.setStatus((short) -1);
+
+        RPCMessage decoded = decode(encode(message));
+
+        assertEquals(RPCMessage.MessageType.REQUEST, decoded.getMessageType());
+        assertEquals(-7, decoded.getTransactionId());
+        assertEquals(Long.MAX_VALUE, decoded.getRPCId());
+        assertEquals(Long.MIN_VALUE, decoded.getRequestId());
+        assertEquals(1, decoded.getProcedureId());
+        assertEquals(-1, decoded.getStatus());
+        assertArrayEquals(new long[]{96, 3, 2}, fields(decoded));
+    }
+
+    @Test
+    public void zigZagKeepsSmallNegativeFieldsShort() {
+        byte[] small = encode(request(1, -1, 1, -64));
+        byte[] large = encode(request(1, Long.MIN_VALUE, Long.MAX_VALUE, -1));
+
+        // Version, type, three ids, procedure, status and three fields of one byte each, then the checksum.
+        assertEquals(2 + 3 + 1 + 1 + 3 + 4, small.length);
+        assertEquals(2 + 3 + 1 + 1 + 10 + 10 + 1 + 4, large.length);
+        assertArrayEquals(new long[]{Long.MIN_VALUE, Long.MAX_VALUE, -1},
+                fields(decode(large)));
+    }
+
+    @Test
+    public void corruptedMessageFailsItsChecksum() {
+        byte[] data = encode(request(1, 96, 3, 2));
+        for (int i = 1; i < data.length; i++) {
+            byte[] corrupted = data.clone();
+            corrupted[i] ^= 0x10;
+            assertNull("byte " + i, decode(corrupted).getMessageType());
+        }
+    }
+
+    @Test
+    public void truncatedMessageIsRejected() {
+        byte[] data = encode(request(1, 96, 3, 2));
+        for (int length = 0; length < data.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(data, 0, truncated, 0, length);
+            assertNull("length " + length, decode(truncated).getMessageType());
+        }
+    }
+
+    @Test
+    public void variableFieldCountsRoundTrip() {
+        RPCMessage batch = request(3, 1, 10, 2, 96, 11, 4);
+        assertTrue(MessageCodec.hasSchema(batch));
+        assertArrayEquals(new long[]{1, 10, 2, 96, 11, 4}, fields(decode(encode(batch))));
+        assertArrayEquals(new long[0], fields(decode(encode(request(3)))));
+    }
+
+    @Test
+    public void variableFieldCountsBeyondTheMessageAreRejected() {
+        // Counts of -1 as a ten byte varint, and of more fields than there are bytes left.
+        byte[][] counts = {
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+                {0x02, 0x00},
+        };
+        for (byte[] count : counts) {
+            byte[] header = {MessageCodec.WIRE_VERSION, 0, 0, 0, 0, 3, 0};
+            byte[] data = new byte[header.length + count.length + 4];
+            System.arraycopy(header, 0, data, 0, header.length);
+            System.arraycopy(count, 0, data, header.length, count.length);
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, data.length - 4);
+            int checksum = (int) crc32.getValue();
+            for (int i = 0; i < 4; i++) {
+                data[data.length - 4 + i] = (byte) (checksum >>> (24 - 8 * i));
+            }
+
+            RPCMessage message = new RPCMessage();
+            assertFalse(MessageCodec.get().decode(data, 0, data.length, message));
+            assertNull(message.getMessageType());
+        }
+    }
+
+    @Test
+    public void messagesOffTheirSchemaUseTheCsvEncoding() {
+        RPCMessage shortRequest = request(1, 96, 3);
+        shortRequest.setCsv_data("96,3");
+        assertFalse(MessageCodec.hasSchema(shortRequest));
+
+        Message message = new Message();
+        message.marshal(shortRequest);
+        RPCMessage decoded = message.unMarshal();
+
+        assertEquals(RPCMessage.MessageType.REQUEST, decoded.getMessageType());
+        assertEquals(2, decoded.getFieldCount());
+        assertEquals(3, decoded.getInt(1));
+    }
+
+    @Test
+    public void messagesOnTheirSchemaUseTheBinaryEncoding() {
+        Message message = new Message();
+        message.marshal(request(2, 96, 4, 3));
+        RPCMessage decoded = message.unMarshal();
+
+        assertEquals(RPCMessage.MessageType.REQUEST, decoded.getMessageType());
+        assertEquals(3, decoded.getFieldCount());
+        assertEquals(4, decoded.getInt(1));
+    }
+
+    private static byte[] encode(RPCMessage message) {
+        byte[] data = new byte[MessageCodec.maxEncodedLength(message)];
+        return Arrays.copyOf(data, MessageCodec.get().encode(message, data, 0));
+    }
+
+    private static RPCMessage decode(byte[] data) {
+        RPCMessage message = new RPCMessage();
+        MessageCodec.get().decode(data, 0, data.length, message);
+        return message;
+    }
+
+    private static long[] fields(RPCMessage message) {
+        long[] fields = new long[message.getFieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = message.getLong(i);
+        }
+        return fields;
+    }
+
+    private static RPCMessage request(int procedureId, long... fields) {
+        RPCMessage message = new RPCMessage();
+        message.setMessageType(RPCMessage.MessageType.REQUEST);
+        message.setProcedureId((short) procedureId);
+        message.setFields(fields);
+        return message;
+    }
+}
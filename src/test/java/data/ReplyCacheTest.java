@@ -0,0 +1,75 @@
+package data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the reply cache that answers retried requests: deduplication by (RPCId, requestId), eviction of the oldest
+ * replies and expiry.
+ *
+ * @author michael
+ */
+public class ReplyCacheTest {
+
+    private static final short NEXT_STOP = 1;
+    private static final short UPDATE_LOCATION = 2;
+
+    @Test
+    public void retriedRequestsGetTheSameReply() {
+        ReplyCache cache = new ReplyCache(1024, 60000);
+        Message reply = new Message();
+        cache.put(7, 1, NEXT_STOP, reply);
+
+        assertSame(reply, cache.get(7, 1, NEXT_STOP));
+        assertNull(cache.get(7, 2, NEXT_STOP));
+        assertNull(cache.get(8, 1, NEXT_STOP));
+        // The same ids for another procedure are a different request.
+        assertNull(cache.get(7, 1, UPDATE_LOCATION));
+    }
+
+    @Test
+    public void requestsWithoutAnIdAreNeverCached() {
+        ReplyCache cache = new ReplyCache(1024, 60000);
+        cache.put(0, 1, NEXT_STOP, new Message());
+
+        assertNull(cache.get(0, 1, NEXT_STOP));
+    }
+
+    @Test
+    public void aCacheWithoutEntriesIsSwitchedOff() {
+        ReplyCache cache = new ReplyCache(0, 60000);
+        cache.put(7, 1, NEXT_STOP, new Message());
+
+        assertNull(cache.get(7, 1, NEXT_STOP));
+    }
+
+    @Test
+    public void oldestRepliesAreEvictedFirst() {
+        int maxEntries = 256;
+        ReplyCache cache = new ReplyCache(maxEntries, 60000);
+        int requests = maxEntries * 20;
+        for (int requestId = 1; requestId <= requests; requestId++) {
+            cache.put(7, requestId, NEXT_STOP, new Message());
+        }
+
+        int cached = 0;
+        for (int requestId = 1; requestId <= requests; requestId++) {
+            if (cache.get(7, requestId, NEXT_STOP) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached > 0 && cached <= maxEntries);
+        assertNull(cache.get(7, 1, NEXT_STOP));
+        assertNotNull(cache.get(7, requests, NEXT_STOP));
+    }
+
+    @Test
+    public void expiredRepliesAreDropped() throws InterruptedException {
+        ReplyCache cache = new ReplyCache(1024, 1);
+        cache.put(7, 1, NEXT_STOP, new Message());
+        Thread.sleep(10);
+
+        assertNull(cache.get(7, 1, NEXT_STOP));
+    }
+}
@@ -0,0 +1,61 @@
+package frontEndServer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for hedging reads: the delay taken from a window of latencies, and the token bucket hedges are paid from.
+ *
+ * @author michael
+ */
+public class HedgePolicyTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void aProcedureIsHedgedAtItsLatencyFromTheLastWindow() throws InterruptedException {
+        HedgePolicy policy = new HedgePolicy(true, WINDOW_NANOS);
+        assertEquals(-1, policy.delayNanos("retrieveNextStop"));
+        for (int i = 0; i < 100; i++) {
+            policy.record("retrieveNextStop", System.nanoTime() - LATENCY_NANOS);
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(WINDOW_NANOS) * 2);
+
+        long delayNanos = policy.delayNanos("retrieveNextStop");
+
+        // Within the histogram's two significant digits.
+        assertTrue(delayNanos >= LATENCY_NANOS * 98 / 100 && delayNanos <= LATENCY_NANOS * 12 / 10);
+        assertEquals(-1, policy.delayNanos("retrieveTramLocation"));
+    }
+
+    @Test
+    public void nothingIsHedgedWhenDisabled() throws InterruptedException {
+        HedgePolicy policy = new HedgePolicy(false, WINDOW_NANOS);
+        policy.record("retrieveNextStop", System.nanoTime() - LATENCY_NANOS);
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(WINDOW_NANOS) * 2);
+
+        assertEquals(-1, policy.delayNanos("retrieveNextStop"));
+    }
+
+    @Test
+    public void hedgesArePaidForByReads() {
+        HedgePolicy policy = new HedgePolicy(true, WINDOW_NANOS);
+        for (int i = 0; i < (int) HedgePolicy.BURST; i++) {
+            assertTrue(policy.tryHedge());
+        }
+        assertFalse(policy.tryHedge());
+
+        // Enough reads for one more hedge, allowing for rounding.
+        for (int i = 0; i <= Math.ceil(1 / HedgePolicy.BUDGET); i++) {
+            policy.requested();
+        }
+
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+        assertEquals((int) HedgePolicy.BURST + 1, policy.hedges());
+    }
+}
@@ -0,0 +1,71 @@
+package frontEndServer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for picking replicas by the power of two choices on latency and outstanding calls.
+ *
+ * @author michael
+ */
+public class ReplicaSelectorTest {
+
+    private static final List<String> REPLICAS = Arrays.asList("rm1", "rm2");
+
+    private final ReplicaSelector mSelector = new ReplicaSelector();
+
+    @Test
+    public void picksTheFasterReplica() {
+        sample("rm1", 100);
+        sample("rm2", 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("rm2", mSelector.choose(REPLICAS, Collections.emptySet()));
+        }
+    }
+
+    @Test
+    public void picksTheReplicaWithFewerOutstandingCalls() {
+        sample("rm1", 10);
+        sample("rm2", 10);
+        for (int i = 0; i < 5; i++) {
+            mSelector.started("rm1");
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("rm2", mSelector.choose(REPLICAS, Collections.emptySet()));
+        }
+    }
+
+    @Test
+    public void aFailedCallCountsAsAtLeastThePenalty() {
+        mSelector.finished("rm1", mSelector.started("rm1"), true);
+
+        long penaltyMicros = TimeUnit.NANOSECONDS.toMicros(ReplicaSelector.FAILURE_PENALTY_NANOS);
+        assertTrue(mSelector.latencyMicros("rm1") > penaltyMicros * 9 / 10);
+    }
+
+    @Test
+    public void excludedReplicasAreNeverPicked() {
+        sample("rm2", 1);
+
+        assertEquals("rm1", mSelector.choose(REPLICAS, Collections.singleton("rm2")));
+        assertEquals("rm2", mSelector.choose(REPLICAS, new HashSet<>(Arrays.asList("rm1", "rm9"))));
+        assertNull(mSelector.choose(REPLICAS, new HashSet<>(REPLICAS)));
+    }
+
+    /*
+    * Record a call that took the given number of milliseconds.
+    * */
+    private void sample(String replica, long latencyMs) {
+        long startNanos = mSelector.started(replica);
+        mSelector.finished(replica, startNanos - TimeUnit.MILLISECONDS.toNanos(latencyMs), false);
+    }
+}
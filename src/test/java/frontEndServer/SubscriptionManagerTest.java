@@ -0,0 +1,78 @@
+package frontEndServer;
+
+import data.Message;
+import data.RPCMessage;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for pushing tram events to subscribers: delivery, and dropping subscribers whose callback fails or hangs.
+ *
+ * @author michael
+ */
+public class SubscriptionManagerTest {
+
+    private final SubscriptionManager mSubscriptions = new SubscriptionManager(100);
+
+    @Test(timeout = 10000)
+    public void deliversEventsOnTheSubscribedRoute() throws Exception {
+        BlockingQueue<Message> delivered = new LinkedBlockingQueue<>();
+        mSubscriptions.subscribe(delivered::add, SubscriptionTopic.ROUTE, 96);
+
+        mSubscriptions.publish(109, 1, 3, 100);
+        mSubscriptions.publish(96, 2, 4, 200);
+
+        RPCMessage events = delivered.take().unMarshal();
+        assertEquals(4, events.getFieldCount());
+        assertEquals(96, events.getInt(0));
+        assertEquals(2, events.getInt(1));
+        assertEquals(4, events.getInt(2));
+        assertEquals(200, events.getLong(3));
+        assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void aFailingCallbackIsUnsubscribed() throws Exception {
+        mSubscriptions.subscribe(message -> {
+            throw new IllegalStateException("gone");
+        }, SubscriptionTopic.FLEET, 0);
+
+        mSubscriptions.publish(96, 1, 3, 100);
+
+        awaitEmpty();
+    }
+
+    @Test(timeout = 10000)
+    public void aCallbackThatHangsIsUnsubscribedWithoutHoldingUpOthers() throws Exception {
+        CountDownLatch hung = new CountDownLatch(1);
+        BlockingQueue<Message> delivered = new LinkedBlockingQueue<>();
+        mSubscriptions.subscribe(message -> {
+            try {
+                hung.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, SubscriptionTopic.TRAM, 1);
+        mSubscriptions.subscribe(delivered::add, SubscriptionTopic.TRAM, 1);
+
+        mSubscriptions.publish(96, 1, 3, 100);
+
+        assertNotNull(delivered.take());
+        while (mSubscriptions.size() > 1) {
+            Thread.sleep(10);
+        }
+        hung.countDown();
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        while (!mSubscriptions.isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package frontEndServer;
+
+import org.junit.Test;
+import replicationManagerServer.RouteNetwork;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for tram id allocation: spreading trams over routes, releasing ids and expiring leases from the timer wheel.
+ *
+ * @author michael
+ */
+public class TramIdAllocatorTest {
+
+    private static final int[] ROUTE_IDS = {96, 109, 112};
+    private static final int ROUTES = ROUTE_IDS.length;
+    private static final long LEASE_MS = 800;
+
+    private final AtomicLong mNow = new AtomicLong(1000000);
+    private final TramIdAllocator mAllocator = new TramIdAllocator(ROUTE_IDS, LEASE_MS, mNow::get);
+
+    @Test
+    public void newTramsGoToTheLeastLoadedRoute() {
+        Set<Integer> routes = new HashSet<>();
+        for (int i = 0; i < ROUTES; i++) {
+            routes.add(mAllocator.allocate() / TramIdAllocator.TRAMS_PER_ROUTE);
+        }
+        assertEquals(ROUTES, routes.size());
+    }
+
+    @Test
+    public void handsOutEveryIdOnceThenRunsOut() {
+        Set<Integer> tramIds = new HashSet<>();
+        for (int i = 0; i < ROUTES * TramIdAllocator.TRAMS_PER_ROUTE; i++) {
+            int tramId = mAllocator.allocate();
+            assertTrue(tramId >= 0 && tramId < ROUTES * TramIdAllocator.TRAMS_PER_ROUTE);
+            assertTrue(tramIds.add(tramId));
+        }
+        assertEquals(TramIdAllocator.NO_TRAM, mAllocator.allocate());
+
+        mAllocator.release(7);
+        mAllocator.release(7);
+        assertEquals(7, mAllocator.allocate());
+        assertEquals(TramIdAllocator.NO_TRAM, mAllocator.allocate());
+    }
+
+    @Test
+    public void expiredLeasesAreReleased() {
+        int tramId = mAllocator.allocate();
+
+        assertEquals(0, mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS / 2)));
+        assertEquals(1, mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS)));
+        assertEquals(tramId, mAllocator.allocate());
+    }
+
+    @Test
+    public void renewedLeasesAreKept() {
+        mAllocator.allocate();
+
+        mAllocator.renew(0);
+        mNow.addAndGet(LEASE_MS * 3 / 4);
+        mAllocator.renew(0);
+        // Past the first lease but not the renewed one, the id is filed under its new expiry.
+        assertEquals(0, mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS / 2)));
+        assertEquals(0, mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS / 8)));
+        assertEquals(1, mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS / 2)));
+    }
+
+    @Test
+    public void sweepingAfterALongPauseReleasesEveryExpiredLease() {
+        for (int i = 0; i < ROUTES * TramIdAllocator.TRAMS_PER_ROUTE; i++) {
+            mAllocator.allocate();
+        }
+
+        assertEquals(ROUTES * TramIdAllocator.TRAMS_PER_ROUTE,
+                mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS * 100)));
+    }
+
+    @Test
+    public void aTramReportingInReclaimsItsReleasedId() {
+        int tramId = mAllocator.allocate();
+        mAllocator.releaseExpired(mNow.addAndGet(LEASE_MS * 2));
+
+        mAllocator.renew(tramId);
+
+        for (int i = 1; i < ROUTES * TramIdAllocator.TRAMS_PER_ROUTE; i++) {
+            assertNotEquals(tramId, mAllocator.allocate());
+        }
+        assertEquals(TramIdAllocator.NO_TRAM, mAllocator.allocate());
+        // Renewing ids out of range is ignored.
+        mAllocator.renew(-1);
+        mAllocator.renew(ROUTES * TramIdAllocator.TRAMS_PER_ROUTE);
+    }
+
+    @Test
+    public void aTramIdMapsToTheRouteItWasLeasedFor() {
+        for (int i = 0; i < ROUTES; i++) {
+            int tramId = mAllocator.allocate();
+            assertEquals(ROUTE_IDS[tramId / TramIdAllocator.TRAMS_PER_ROUTE], mAllocator.routeId(tramId));
+        }
+        assertEquals(RouteNetwork.NO_ROUTE, mAllocator.routeId(-1));
+        assertEquals(RouteNetwork.NO_ROUTE, mAllocator.routeId(ROUTES * TramIdAllocator.TRAMS_PER_ROUTE));
+    }
+}
@@ -0,0 +1,65 @@
+package replicationManagerServer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the consistent hash ring: keys spread evenly over the nodes and only a removed node's keys move.
+ *
+ * @author michael
+ */
+public class ConsistentHashRingTest {
+
+    private static final List<String> NODES = Arrays.asList("shard1", "shard2", "shard3", "shard4");
+    private static final int VIRTUAL_NODES = 64;
+    private static final int KEYS = 100000;
+
+    @Test
+    public void everyKeyHasTheSameOwnerOnEveryRing() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+        ConsistentHashRing other = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+
+        for (int key = -1000; key < 1000; key++) {
+            int node = ring.nodeIndex(key);
+            assertTrue(node >= 0 && node < NODES.size());
+            assertEquals(node, other.nodeIndex(key));
+        }
+    }
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+        int[] keys = new int[NODES.size()];
+        for (int key = 0; key < KEYS; key++) {
+            keys[ring.nodeIndex(key)]++;
+        }
+
+        for (int node = 0; node < NODES.size(); node++) {
+            // A quarter each, give or take.
+            assertTrue(NODES.get(node) + " has " + keys[node], keys[node] > KEYS / 8 && keys[node] < KEYS * 3 / 8);
+        }
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsKeys() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+        List<String> remaining = NODES.subList(0, NODES.size() - 1);
+        ConsistentHashRing smaller = new ConsistentHashRing(remaining, VIRTUAL_NODES);
+
+        for (int key = 0; key < KEYS; key++) {
+            String owner = NODES.get(ring.nodeIndex(key));
+            if (remaining.contains(owner)) {
+                assertEquals(owner, remaining.get(smaller.nodeIndex(key)));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRingNeedsANode() {
+        new ConsistentHashRing(Arrays.<String>asList(), VIRTUAL_NODES);
+    }
+}
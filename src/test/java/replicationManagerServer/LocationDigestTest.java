@@ -0,0 +1,84 @@
+package replicationManagerServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Merkle tree digest anti-entropy compares replicas with.
+ *
+ * @author michael
+ */
+public class LocationDigestTest {
+
+    @Test
+    public void hasFourThousandLeavesUnderOneRoot() {
+        assertEquals(4096, LocationDigest.LEAVES);
+        assertEquals(1, LocationDigest.nodes(0));
+        assertEquals(LocationDigest.LEAVES, LocationDigest.nodes(LocationDigest.LEAF_LEVEL));
+        for (int tramId = 0; tramId < 10000; tramId++) {
+            int leaf = LocationDigest.leaf(tramId);
+            assertTrue(LocationDigest.isNode(LocationDigest.LEAF_LEVEL, leaf));
+        }
+        assertFalse(LocationDigest.isNode(LocationDigest.LEVELS, 0));
+        assertFalse(LocationDigest.isNode(0, 1));
+    }
+
+    @Test
+    public void sameLocationsGiveTheSameTreeWhateverTheOrder() {
+        LocationDigest first = new LocationDigest();
+        LocationDigest second = new LocationDigest();
+        TramLocation earlier = new TramLocation(96, 1, 100);
+        TramLocation later = new TramLocation(96, 2, 200);
+
+        first.replace(1, null, earlier);
+        first.replace(1, earlier, later);
+        first.replace(2, null, earlier);
+        second.replace(2, null, earlier);
+        second.replace(1, null, later);
+
+        assertSameTree(first, second);
+        assertNotEquals(0, first.get(0, 0));
+    }
+
+    @Test
+    public void removingEveryLocationEmptiesTheTree() {
+        LocationDigest digest = new LocationDigest();
+        TramLocation location = new TramLocation(96, 1, 100);
+        digest.replace(7, null, location);
+        digest.replace(7, location, null);
+
+        assertSameTree(new LocationDigest(), digest);
+    }
+
+    @Test
+    public void aChangedTramDiffersOnlyAlongItsPath() {
+        LocationDigest first = new LocationDigest();
+        LocationDigest second = new LocationDigest();
+        for (int tramId = 0; tramId < 1000; tramId++) {
+            first.replace(tramId, null, new TramLocation(96, tramId, tramId));
+            second.replace(tramId, null, new TramLocation(96, tramId, tramId));
+        }
+        int changed = 123;
+        second.replace(changed, new TramLocation(96, changed, changed), new TramLocation(96, changed + 1, 5000));
+
+        int path = LocationDigest.leaf(changed);
+        for (int level = LocationDigest.LEAF_LEVEL; level >= 0; level--) {
+            for (int node = 0; node < LocationDigest.nodes(level); node++) {
+                assertEquals("level " + level + " node " + node, node == path,
+                        first.get(level, node) != second.get(level, node));
+            }
+            int parent = path / LocationDigest.FANOUT;
+            assertEquals(LocationDigest.firstChild(parent), path - path % LocationDigest.FANOUT);
+            path = parent;
+        }
+    }
+
+    private static void assertSameTree(LocationDigest expected, LocationDigest actual) {
+        for (int level = 0; level < LocationDigest.LEVELS; level++) {
+            for (int node = 0; node < LocationDigest.nodes(level); node++) {
+                assertEquals("level " + level + " node " + node, expected.get(level, node), actual.get(level, node));
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package replicationManagerServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the location write-ahead log: replay after a restart, torn and stale records, and recovery from snapshots
+ * across segment rotations.
+ *
+ * @author michael
+ */
+public class LocationStoreTest {
+
+    private static final int RECORD_BYTES = 32;
+    private static final int SLOTS = 8;
+
+    private File mDirectory;
+    private LocationStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("location-store").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mStore != null) {
+            mStore.close();
+        }
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(mDirectory.toPath());
+    }
+
+    @Test
+    public void replaysTheLogAfterARestart() throws Exception {
+        open(1000);
+        for (int tramId = 1; tramId <= 5; tramId++) {
+            mStore.put(tramId, new TramLocation(96, tramId * 2, 100 + tramId));
+        }
+        Map<Integer, TramLocation> expected = new HashMap<>(mStore.getLocations());
+
+        restart(1000);
+
+        assertEquals(expected, mStore.getLocations());
+    }
+
+    @Test
+    public void replayKeepsTheNewestLocation() throws Exception {
+        open(1000);
+        mStore.put(1, new TramLocation(96, 2, 200));
+        mStore.put(1, new TramLocation(96, 1, 100));
+
+        restart(1000);
+
+        assertEquals(new TramLocation(96, 2, 200), mStore.get(1));
+    }
+
+    @Test
+    public void replayStopsAtATornRecord() throws Exception {
+        open(1000);
+        for (int tramId = 1; tramId <= 3; tramId++) {
+            mStore.put(tramId, new TramLocation(96, tramId, 100 + tramId));
+        }
+        mStore.close();
+        try (RandomAccessFile file = new RandomAccessFile(segment(1), "rw")) {
+            // The stop of the second record.
+            file.seek(RECORD_BYTES + 12);
+            file.writeInt(7);
+        }
+
+        open(1000);
+
+        assertEquals(new TramLocation(96, 1, 101), mStore.get(1));
+        assertNull(mStore.get(2));
+        assertNull(mStore.get(3));
+    }
+
+    @Test
+    public void recordsFromAnEarlierGenerationAreNotReplayed() throws Exception {
+        open(1000);
+        mStore.put(1, new TramLocation(96, 1, 101));
+        mStore.close();
+        // What reusing a spare segment does, before anything new is written to it.
+        Files.move(segment(1).toPath(), segment(2).toPath());
+
+        open(1000);
+
+        assertNull(mStore.get(1));
+    }
+
+    @Test
+    public void recoversFromSnapshotsAcrossRotations() throws Exception {
+        open(SLOTS);
+        for (int round = 1; round <= 20; round++) {
+            for (int i = 0; i < SLOTS; i++) {
+                mStore.put(i, new TramLocation(round, i, round * 100 + i));
+            }
+            awaitSnapshot(round);
+        }
+        Map<Integer, TramLocation> expected = new HashMap<>(mStore.getLocations());
+        // The current segment and spares, not one segment per rotation.
+        assertTrue(walFiles() <= 3);
+
+        restart(SLOTS);
+
+        assertEquals(expected, mStore.getLocations());
+        assertEquals(1, walFiles());
+    }
+
+    private void open(int snapshotEvery) {
+        mStore = new LocationStore("rm", mDirectory, SLOTS * RECORD_BYTES, snapshotEvery);
+    }
+
+    private void restart(int snapshotEvery) throws InterruptedException {
+        mStore.close();
+        open(snapshotEvery);
+    }
+
+    private File segment(long generation) {
+        return new File(mDirectory, "rm." + generation + ".wal");
+    }
+
+    private int walFiles() {
+        String[] files = mDirectory.list((directory, name) -> name.endsWith(".wal"));
+        return files == null ? 0 : files.length;
+    }
+
+    /*
+    * Wait for the snapshot to cover the given generation. The generation follows the magic in the snapshot header.
+    * */
+    private void awaitSnapshot(long generation) throws Exception {
+        File snapshot = new File(mDirectory, "rm.snapshot");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+                file.seek(4);
+                if (file.readLong() >= generation) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("no snapshot of generation " + generation);
+    }
+}
@@ -0,0 +1,144 @@
+package replicationManagerServer;
+
+import data.RPCMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the route network: parsing the routes csv, stop lookups, sending a network in a message and replacing the
+ * current network on reload.
+ *
+ * @author michael
+ */
+public class RouteNetworkTest {
+
+    private static final String ROUTES = "route_id,stop_sequence,stop_id\n"
+            + "# Rows need not be in order.\n"
+            + "7,2,20\n"
+            + "3,1,1\n"
+            + "\n"
+            + "7,1,10\n"
+            + "3,2,2\n"
+            + "7,3,30\n";
+
+    private File mFile;
+    private RouteNetwork mInitial;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("routes", ".csv");
+        mInitial = RouteNetwork.current();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        // Put back a network with the initial one's content, which reload then takes as the current one.
+        try (InputStream in = RouteNetwork.class.getResourceAsStream("/routes.csv")) {
+            Files.copy(in, mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        RouteNetwork.reload(mFile);
+        Files.delete(mFile.toPath());
+        assertEquals(mInitial.version(), RouteNetwork.current().version());
+    }
+
+    @Test
+    public void loadsRoutesSortedByIdWhateverTheRowOrder() throws IOException {
+        RouteNetwork network = load(ROUTES);
+
+        assertEquals(2, network.routeCount());
+        assertEquals(3, network.routeId(0));
+        assertEquals(7, network.routeId(1));
+        assertEquals(1, network.routeIndex(7));
+        assertEquals(RouteNetwork.NO_ROUTE, network.routeIndex(5));
+        assertEquals(10, network.firstStop(7));
+        assertEquals(20, network.secondStop(7));
+        assertEquals(RouteTable.NO_STOP, network.firstStop(5));
+    }
+
+    @Test
+    public void nextStopFollowsTheDirectionOfTravel() throws IOException {
+        RouteNetwork network = load(ROUTES);
+
+        assertEquals(30, network.nextStop(7, 20, 10));
+        assertEquals(10, network.nextStop(7, 20, 30));
+        // Turning round at the end of the line.
+        assertEquals(20, network.nextStop(7, 30, 20));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAStopSequenceGivenTwice() throws IOException {
+        load(ROUTES + "7,2,25\n");
+    }
+
+    @Test
+    public void theVersionFollowsTheContent() throws IOException {
+        assertEquals(load(ROUTES).version(), load(ROUTES).version());
+        assertNotEquals(load(ROUTES).version(), load(ROUTES + "7,4,40\n").version());
+    }
+
+    @Test
+    public void aNetworkReadsBackFromAMessageAsItWasWritten() throws IOException {
+        RouteNetwork network = load(ROUTES);
+        RPCMessage message = new RPCMessage();
+        message.clearFields();
+        message.addField(network.version());
+        network.writeTo(message);
+
+        RouteNetwork read = RouteNetwork.readFrom(message, 1);
+
+        assertEquals(network.version(), read.version());
+        assertEquals(30, read.nextStop(7, 20, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void aNetworkCutShortIsRejected() throws IOException {
+        RPCMessage message = new RPCMessage();
+        message.clearFields();
+        load(ROUTES).writeTo(message);
+        RPCMessage truncated = new RPCMessage();
+        truncated.clearFields();
+        for (int i = 0; i < message.getFieldCount() - 1; i++) {
+            truncated.addField(message.getLong(i));
+        }
+
+        RouteNetwork.readFrom(truncated, 0);
+    }
+
+    @Test
+    public void reloadReplacesTheNetworkWithAChangedFile() throws IOException {
+        write(ROUTES);
+
+        RouteNetwork.reload(mFile);
+
+        assertEquals(load(ROUTES).version(), RouteNetwork.current().version());
+        assertEquals(2, RouteNetwork.current().routeCount());
+    }
+
+    @Test
+    public void reloadKeepsTheCurrentNetworkWhenTheFileDoesNotLoad() throws IOException {
+        write(ROUTES + "7,x,40\n");
+
+        RouteNetwork.reload(mFile);
+
+        assertSame(mInitial, RouteNetwork.current());
+    }
+
+    private static RouteNetwork load(String routes) throws IOException {
+        return RouteNetwork.load(new ByteArrayInputStream(routes.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private void write(String routes) throws IOException {
+        Files.write(mFile.toPath(), routes.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,40 @@
+package replicationManagerServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ordering tram locations, last writer wins.
+ *
+ * @author michael
+ */
+public class TramLocationTest {
+
+    @Test
+    public void newerLocationsSupersedeOlderOnes() {
+        TramLocation older = new TramLocation(96, 1, 100);
+        TramLocation newer = new TramLocation(96, 2, 101);
+
+        assertTrue(newer.supersedes(older));
+        assertFalse(older.supersedes(newer));
+        assertTrue(older.supersedes(null));
+        assertFalse(older.supersedes(new TramLocation(96, 1, 100)));
+    }
+
+    @Test
+    public void tiesAreBrokenTheSameWayWhicheverArrivesFirst() {
+        TramLocation[] tied = {
+                new TramLocation(96, 1, 100), new TramLocation(96, 2, 100), new TramLocation(109, 1, 100)};
+
+        for (TramLocation first : tied) {
+            for (TramLocation second : tied) {
+                if (first != second) {
+                    assertTrue(first.supersedes(second) != second.supersedes(first));
+                }
+            }
+        }
+        assertTrue(tied[2].supersedes(tied[1]));
+        assertTrue(tied[1].supersedes(tied[0]));
+    }
+}